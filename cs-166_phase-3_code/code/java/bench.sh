@@ -0,0 +1,17 @@
+#! /bin/bash
+DBNAME=$1
+PORT=$2
+USER=$3
+shift 3
+
+# Reloads the database for every data directory given (default ../data) and
+# appends one JSON line per benchmark to bench-results.jsonl.
+# Example: source ./bench.sh flightDB 5432 user ../data /tmp/data_x10
+java -cp lib/*:bin/ MechanicShop $DBNAME $PORT $USER bench bench-results.jsonl "$@" || return 1 2>/dev/null || exit 1
+
+# The last data directory stays loaded; when data directories are given, the
+# query plans are checked against it and a plan regression fails the script.
+# Give a data set of scale 10 or more last, the planner reads small tables whole.
+if [ $# -gt 0 ]; then
+	java -cp lib/*:bin/ MechanicShop $DBNAME $PORT $USER plancheck
+fi
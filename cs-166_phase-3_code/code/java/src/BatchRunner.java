@@ -0,0 +1,351 @@
+/*
+ * Non-interactive batch mode for MechanicShop
+ * ===========================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This class runs a script of shop operations without the menu, e.g. an
+ * overnight import from a dealer.  Every line is one operation with all its
+ * answers inline, fields separated by '|':
+ *
+ *   customer|<first name>|<last name>|<phone>|<address>
+ *   mechanic|<first name>|<last name>|<years of experience>
+ *   car|<vin>|<make>|<model>|<year>
+ *   owns|<customer id>|<vin>
+ *   open|<customer id>|<vin>|<date>|<odometer>|<complaint>
+ *   close|<rid>|<mechanic id>|<date>|<comment>|<bill>
+ *   report|<6..10>[|<k>][|<from date>[|<to date>]]
+ *   commit
+ *
+ * Ids may be written as @customer, @mechanic or @request to mean the last
+ * one added by this script.  Blank lines and lines starting with '#' are
+ * skipped.
+ *
+ * Operations are queued with JDBC batching and sent as one transaction per
+ * group of groupSize operations (or at a "commit" line or a report).  Each
+ * kind of row goes in its own batch, sent in dependency order, so a row may
+ * refer to rows added earlier in the same group.  A group that fails is
+ * rolled back and reported, and the script carries on with the next one;
+ * the run then exits with status 1.
+ *
+ */
+
+public class BatchRunner{
+	public static final int DEFAULT_GROUP_SIZE = 500;
+
+	static final String INSERT_CUSTOMER = "INSERT INTO Customer VALUES (?, ?, ?, ?, ?)";
+	static final String INSERT_MECHANIC = "INSERT INTO Mechanic VALUES (?, ?, ?, ?)";
+	static final String INSERT_CAR = "INSERT INTO Car VALUES (?, ?, ?, ?)";
+	static final String INSERT_OWNS = "INSERT INTO Owns VALUES (?, ?, ?)";
+	static final String INSERT_REQUEST = "INSERT INTO Service_Request VALUES(?, ?, ?, CAST(? AS DATE), ?, ?)";
+	static final String ADD_SERVICE_COUNT = "INSERT INTO Car_Service_Count (car_vin, service_count) VALUES (?, ?) " +
+		"ON CONFLICT (car_vin) DO UPDATE SET service_count = Car_Service_Count.service_count + EXCLUDED.service_count";
+	static final String QUEUE_REQUEST = "INSERT INTO Open_Request (rid, date, odometer) VALUES (?, CAST(? AS DATE), ?)";
+	static final String INSERT_CLOSED = "INSERT INTO Closed_Request VALUES(?, ?, ?, CAST(? AS DATE), ?, ?)";
+	static final String ADD_BILL = "INSERT INTO Customer_Bill (customer_id, total_bill, closed_count) SELECT customer_id, ?, 1 FROM Service_Request WHERE (rid = ?) " +
+		"ON CONFLICT (customer_id) DO UPDATE SET total_bill = Customer_Bill.total_bill + EXCLUDED.total_bill, closed_count = Customer_Bill.closed_count + 1";
+	static final String ADD_REVENUE = "INSERT INTO Revenue_Cube (month, mid, make, revenue, jobs) SELECT date_trunc('month', CAST(? AS DATE)), ?, C.make, ?, 1 " +
+		"FROM Service_Request SR, Car C WHERE (SR.rid = ? AND C.vin = SR.car_vin) " +
+		"ON CONFLICT (month, mid, make) DO UPDATE SET revenue = Revenue_Cube.revenue + EXCLUDED.revenue, jobs = Revenue_Cube.jobs + 1";
+	static final String DEQUEUE_REQUEST = "DELETE FROM Open_Request WHERE (rid = ?)";
+	//batches are sent in this order, referenced rows first
+	static final String[] ORDER = {
+		INSERT_CUSTOMER, INSERT_MECHANIC, INSERT_CAR, INSERT_OWNS, INSERT_REQUEST, ADD_SERVICE_COUNT, QUEUE_REQUEST, INSERT_CLOSED, ADD_BILL, ADD_REVENUE, DEQUEUE_REQUEST
+	};
+
+	private final MechanicShop esql;
+	private final int groupSize;
+
+	//state of the open group
+	private final Set<String> queued = new HashSet<String>();
+	private final Map<String, Integer> serviceCounts = new HashMap<String, Integer>();
+	private final List<Runnable> onCommit = new ArrayList<Runnable>();
+	private int groupOps = 0;
+	private int groupFirstLine = 0;
+
+	//ids most recently added by this script, for @references
+	private int lastCustomer = -1;
+	private int lastMechanic = -1;
+	private int lastRequest = -1;
+
+	private int committedOps = 0;
+	private int failedOps = 0;
+	private int failedGroups = 0;
+
+	public BatchRunner(MechanicShop esql, int groupSize){
+		this.esql = esql;
+		this.groupSize = groupSize;
+	}
+
+	/**
+	 * Method to run every line of a script.
+	 *
+	 * @param script the operations, one per line
+	 * @return the number of groups that were rolled back
+	 * @throws java.io.IOException when the script could not be read
+	 * @throws java.sql.SQLException when the connection failed
+	 */
+	public int run(BufferedReader script) throws IOException, SQLException {
+		long start = System.nanoTime();
+		int lineNo = 0;
+		String line;
+		while((line = script.readLine()) != null){
+			++lineNo;
+			line = line.trim();
+			if(line.isEmpty() || line.startsWith("#")){
+				continue;
+			}
+			String[] f = line.split("\\|", -1);
+			for(int i = 0; i < f.length; ++i){
+				f[i] = f[i].trim();
+			}
+			try{
+				if(f[0].equals("commit")){
+					flush();
+				}else if(f[0].equals("report")){
+					flush();
+					report(f);
+				}else{
+					if(groupOps == 0){
+						groupFirstLine = lineNo;
+					}
+					queue(f);
+					++groupOps;
+					if(groupOps >= groupSize){
+						flush();
+					}
+				}
+			}catch(IllegalArgumentException e){
+				//a malformed line is skipped, the rest of its group still runs
+				esql.out.println("line " + lineNo + ": " + e.getMessage() + ", skipped");
+				++failedOps;
+			}
+		}
+		flush();
+		double seconds = (System.nanoTime() - start) / 1e9;
+		esql.out.println(String.format("Batch done: %d operations committed, %d failed, %.1fs (%.0f operations/sec)",
+			committedOps, failedOps, seconds, committedOps / Math.max(seconds, 1e-9)));
+		return failedGroups;
+	}
+
+	/**
+	 * Method to queue the rows of one operation.
+	 */
+	private void queue(String[] f) throws SQLException {
+		String op = f[0];
+		if(op.equals("customer")){
+			fields(f, 5);
+			final int id = esql.customerKeys.nextKey();
+			final String fname = f[1];
+			final String lname = f[2];
+			final String phone = f[3];
+			final String address = f[4];
+			add(INSERT_CUSTOMER, id, fname, lname, phone, address);
+			lastCustomer = id;
+			onCommit.add(new Runnable(){
+				public void run(){
+					esql.getKeyIndex().addCustomer(id);
+					esql.getNameIndex().add(id, fname, lname);
+					esql.getEntityCache().putCustomer(id, fname, lname, phone, address);
+				}
+			});
+		}else if(op.equals("mechanic")){
+			fields(f, 4);
+			final int id = esql.mechanicKeys.nextKey();
+			final String fname = f[1];
+			final String lname = f[2];
+			final int experience = number(f[3], -1);
+			if(experience < 0 || experience > 99){
+				throw new IllegalArgumentException("experience must be 0 to 99");
+			}
+			add(INSERT_MECHANIC, id, fname, lname, experience);
+			lastMechanic = id;
+			onCommit.add(new Runnable(){
+				public void run(){
+					esql.getKeyIndex().addMechanic(id);
+					esql.getEntityCache().putMechanic(id, fname, lname, experience);
+				}
+			});
+		}else if(op.equals("car")){
+			fields(f, 5);
+			final String vin = f[1];
+			final String make = f[2];
+			final String model = f[3];
+			final int year = number(f[4], -1);
+			add(INSERT_CAR, vin, make, model, year);
+			onCommit.add(new Runnable(){
+				public void run(){
+					esql.getKeyIndex().addCar(vin);
+					esql.getEntityCache().putCar(vin, make, model, year);
+				}
+			});
+		}else if(op.equals("owns")){
+			fields(f, 3);
+			final int customer = number(f[1], lastCustomer);
+			final String vin = f[2];
+			add(INSERT_OWNS, esql.ownsKeys.nextKey(), customer, vin);
+			onCommit.add(new Runnable(){
+				public void run(){
+					esql.getEntityCache().addOwnedCar(customer, vin);
+				}
+			});
+		}else if(op.equals("open")){
+			fields(f, 6);
+			partition("service_request", f[3]);
+			final int rid = esql.requestKeys.nextKey();
+			String vin = f[2].toUpperCase();
+			int odometer = number(f[4], -1);
+			add(INSERT_REQUEST, rid, number(f[1], lastCustomer), vin, f[3], odometer, f[5]);
+			add(QUEUE_REQUEST, rid, f[3], odometer);
+			Integer count = serviceCounts.get(vin);
+			serviceCounts.put(vin, count == null ? 1 : count + 1);
+			lastRequest = rid;
+			onCommit.add(new Runnable(){
+				public void run(){
+					esql.getKeyIndex().addRequest(rid);
+				}
+			});
+		}else if(op.equals("close")){
+			fields(f, 6);
+			partition("closed_request", f[3]);
+			int rid = number(f[1], lastRequest);
+			int bill = number(f[5], -1);
+			int mid = number(f[2], lastMechanic);
+			add(INSERT_CLOSED, esql.closedKeys.nextKey(), rid, mid, f[3], f[4], bill);
+			add(ADD_BILL, bill, rid);
+			add(ADD_REVENUE, f[3], mid, bill, rid);
+			add(DEQUEUE_REQUEST, rid);
+		}else{
+			throw new IllegalArgumentException("unknown operation '" + op + "'");
+		}
+	}
+
+	/**
+	 * Method to send the open group as one transaction.
+	 */
+	private void flush() throws SQLException {
+		if(groupOps == 0){
+			return;
+		}
+		//one upsert per car, so a multi-row insert never touches the same row twice
+		for(Map.Entry<String, Integer> count : serviceCounts.entrySet()){
+			add(ADD_SERVICE_COUNT, count.getKey(), count.getValue());
+		}
+		esql.beginOperation("BatchGroup");
+		esql.beginTransaction();
+		try{
+			for(String sql : ORDER){
+				if(queued.contains(sql)){
+					esql.executeBatch(sql);
+				}
+			}
+			esql.commitTransaction();
+			for(Runnable update : onCommit){
+				update.run();
+			}
+			committedOps += groupOps;
+		}catch(SQLException e){
+			SQLException cause = e.getNextException() != null ? e.getNextException() : e;
+			esql.out.println("lines " + groupFirstLine + "+: group of " + groupOps + " operations rolled back: " + cause.getMessage());
+			failedOps += groupOps;
+			++failedGroups;
+			//batches after the failing one were never sent
+			for(String sql : ORDER){
+				if(queued.contains(sql)){
+					esql.getStatementCache().prepare(sql).clearBatch();
+				}
+			}
+		}finally{
+			esql.rollbackTransaction();
+			esql.endOperation();
+			queued.clear();
+			serviceCounts.clear();
+			onCommit.clear();
+			groupOps = 0;
+		}
+	}
+
+	private void report(String[] f) throws SQLException {
+		fields(f, 2);
+		int report = number(f[1], -1);
+		if(report < 6 || report > 10){
+			throw new IllegalArgumentException("unknown report '" + f[1] + "'");
+		}
+		esql.beginOperation(MechanicShop.OPERATIONS[report]);
+		try{
+			runReport(report, f);
+		}finally{
+			esql.endOperation();
+		}
+	}
+
+	private void runReport(int report, String[] f) throws SQLException {
+		//report 9 takes k first, then every report may take a date range
+		int from = report == 9 ? 3 : 2;
+		String[] range = null;
+		if(f.length > from && !f[from].isEmpty()){
+			range = new String[]{ f[from], f.length > from + 1 && !f[from + 1].isEmpty() ? f[from + 1] : "today" };
+		}
+		switch(report){
+			case 6: MechanicShop.ListCustomersWithBillLessThan100(esql, range); break;
+			case 7: MechanicShop.ListCarsBefore1995With50000Milles(esql, range); break;
+			case 8: MechanicShop.ListCarsBefore1995With50000Milles(esql, range); break;
+			case 9:
+				fields(f, 3);
+				MechanicShop.ListKCarsWithTheMostServices(esql, number(f[2], -1), range);
+				break;
+			case 10: MechanicShop.ListCustomersInDescendingOrderOfTheirTotalBill(esql, range); break;
+			default: throw new IllegalArgumentException("unknown report '" + f[1] + "'");
+		}
+	}
+
+	private void partition(String table, String date){
+		try{
+			esql.ensurePartition(table, date);
+		}catch(SQLException e){
+			throw new IllegalArgumentException("bad date '" + date + "': " + e.getMessage());
+		}
+	}
+
+	private void add(String sql, Object... params) throws SQLException {
+		esql.addBatch(sql, params);
+		queued.add(sql);
+	}
+
+	private static void fields(String[] f, int count){
+		if(f.length < count){
+			throw new IllegalArgumentException(f[0] + " needs " + (count - 1) + " fields");
+		}
+	}
+
+	/**
+	 * @return the number, or last for an @reference
+	 */
+	private static int number(String field, int last){
+		if(field.startsWith("@")){
+			if(last < 0){
+				throw new IllegalArgumentException(field + " used before anything was added");
+			}
+			return last;
+		}
+		try{
+			return Integer.parseInt(field);
+		}catch(NumberFormatException e){
+			throw new IllegalArgumentException("'" + field + "' is not a number");
+		}
+	}
+}//end BatchRunner
@@ -0,0 +1,283 @@
+/*
+ * Bulk close of service requests for MechanicShop
+ * ===============================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This class closes many service requests at once, e.g. everything the
+ * mechanics finished in a shift.  Every line is one closed request:
+ *
+ *   <rid>|<mechanic id>|<date>|<comment>|<bill>
+ *
+ * Blank lines and lines starting with '#' are skipped.
+ *
+ * All the rids and mechanic ids are checked with one query that joins them,
+ * as arrays, against Service_Request, Mechanic and Closed_Request.  The rows
+ * that pass are inserted with JDBC batches in one transaction: the closed
+ * requests, one billing rollup update per customer, one revenue cube update
+ * and one delete from the open work queue.  Closing N requests takes a
+ * handful of round trips instead of a few per request.  A row that fails a
+ * check is reported with its line and left out; the others are still closed.
+ *
+ */
+
+public class BulkCloser{
+	//one row per input row, in input order: does the request exist and whose is it, does the mechanic exist, is the request closed
+	static final String CHECK_SQL = "SELECT T.n, SR.customer_id, M.id, EXISTS (SELECT 1 FROM Closed_Request CR WHERE CR.rid = T.rid) " +
+		"FROM unnest(CAST(? AS INTEGER[]), CAST(? AS INTEGER[])) WITH ORDINALITY AS T(rid, mid, n) " +
+		"LEFT JOIN Service_Request SR ON SR.rid = T.rid LEFT JOIN Mechanic M ON M.id = T.mid";
+	//the bills are added up per customer first, so a multi-row insert never updates the same rollup row twice
+	static final String ADD_BILLS = "INSERT INTO Customer_Bill (customer_id, total_bill, closed_count) VALUES (?, ?, ?) " +
+		"ON CONFLICT (customer_id) DO UPDATE SET total_bill = Customer_Bill.total_bill + EXCLUDED.total_bill, closed_count = Customer_Bill.closed_count + EXCLUDED.closed_count";
+	//grouped on the server, where the dates become months
+	static final String ADD_REVENUE = "INSERT INTO Revenue_Cube (month, mid, make, revenue, jobs) " +
+		"SELECT date_trunc('month', T.day), T.mid, C.make, SUM(T.bill), COUNT(*) " +
+		"FROM unnest(CAST(? AS INTEGER[]), CAST(? AS INTEGER[]), CAST(? AS DATE[]), CAST(? AS INTEGER[])) AS T(rid, mid, day, bill), Service_Request SR, Car C " +
+		"WHERE SR.rid = T.rid AND C.vin = SR.car_vin GROUP BY 1, 2, 3 " +
+		"ON CONFLICT (month, mid, make) DO UPDATE SET revenue = Revenue_Cube.revenue + EXCLUDED.revenue, jobs = Revenue_Cube.jobs + EXCLUDED.jobs";
+	static final String DEQUEUE_REQUESTS = "DELETE FROM Open_Request WHERE rid = ANY (CAST(? AS INTEGER[]))";
+
+	/**
+	 * One line of the input.
+	 */
+	private static class Row{
+		final int line;
+		final int rid;
+		final int mid;
+		final String date;
+		final String comment;
+		final int bill;
+		int customer;
+		String error;
+
+		Row(int line, int rid, int mid, String date, String comment, int bill){
+			this.line = line;
+			this.rid = rid;
+			this.mid = mid;
+			this.date = date;
+			this.comment = comment;
+			this.bill = bill;
+		}
+	}//end Row
+
+	private final MechanicShop esql;
+
+	public BulkCloser(MechanicShop esql){
+		this.esql = esql;
+	}
+
+	/**
+	 * Method to read the rows to close until the end of the input or a blank
+	 * line, then close every valid one.
+	 *
+	 * @param input the rows, one per line
+	 * @param stopAtBlank true to end at the first blank line, for rows typed at the terminal
+	 * @return the number of requests closed
+	 * @throws java.io.IOException when the input could not be read
+	 * @throws java.sql.SQLException when the connection failed
+	 */
+	public int run(BufferedReader input, boolean stopAtBlank) throws IOException, SQLException {
+		List<Row> rows = new ArrayList<Row>();
+		int failed = 0;
+		int lineNo = 0;
+		String line;
+		while((line = input.readLine()) != null){
+			++lineNo;
+			line = line.trim();
+			if(line.isEmpty() && stopAtBlank){
+				break;
+			}
+			if(line.isEmpty() || line.startsWith("#")){
+				continue;
+			}
+			try{
+				rows.add(parse(lineNo, line));
+			}catch(IllegalArgumentException e){
+				esql.out.println("line " + lineNo + ": " + e.getMessage() + ", not closed");
+				++failed;
+			}
+		}
+		if(rows.isEmpty()){
+			esql.out.println("Nothing to close.");
+			return 0;
+		}
+
+		check(rows);
+		List<Row> valid = new ArrayList<Row>();
+		for(Row row : rows){
+			if(row.error == null){
+				try{
+					esql.ensurePartition("closed_request", row.date);
+				}catch(SQLException e){
+					row.error = "bad date '" + row.date + "'";
+				}
+			}
+			if(row.error != null){
+				esql.out.println("line " + row.line + ": " + row.error + ", not closed");
+				++failed;
+			}else{
+				valid.add(row);
+			}
+		}
+		int closed = close(valid);
+		esql.out.println(String.format("%d requests closed, %d not closed.", closed, failed + valid.size() - closed));
+		return closed;
+	}
+
+	/**
+	 * Method to check every row with one query.  Rows that fail get their error set.
+	 */
+	private void check(List<Row> rows) throws SQLException {
+		final Row[] byNumber = rows.toArray(new Row[rows.size()]);
+		int[] rids = new int[byNumber.length];
+		int[] mids = new int[byNumber.length];
+		for(int i = 0; i < byNumber.length; ++i){
+			rids[i] = byNumber[i].rid;
+			mids[i] = byNumber[i].mid;
+		}
+		esql.executeQueryAndVisit(CHECK_SQL, new RowVisitor(){
+			public void visit(ResultSet rs) throws SQLException {
+				Row row = byNumber[rs.getInt(1) - 1];
+				row.customer = rs.getInt(2);
+				if(rs.wasNull()){
+					row.error = "service request " + row.rid + " does not exist";
+					return;
+				}
+				rs.getInt(3);
+				if(rs.wasNull()){
+					row.error = "mechanic " + row.mid + " does not exist";
+				}else if(rs.getBoolean(4)){
+					row.error = "service request " + row.rid + " is closed already";
+				}
+			}
+		}, array(rids), array(mids));
+		//a request listed twice is closed once
+		Set<Integer> seen = new HashSet<Integer>();
+		for(Row row : byNumber){
+			if(row.error == null && !seen.add(row.rid)){
+				row.error = "service request " + row.rid + " is listed twice";
+			}
+		}
+	}
+
+	/**
+	 * Method to insert the checked rows in one transaction and print them.
+	 *
+	 * @return the number of rows closed, 0 if the transaction failed
+	 */
+	private int close(List<Row> rows) throws SQLException {
+		if(rows.isEmpty()){
+			return 0;
+		}
+		Map<Integer, long[]> bills = new LinkedHashMap<Integer, long[]>();
+		int[] rids = new int[rows.size()];
+		int[] mids = new int[rows.size()];
+		int[] amounts = new int[rows.size()];
+		String[] dates = new String[rows.size()];
+		List<String[]> printed = new ArrayList<String[]>();
+		for(int i = 0; i < rows.size(); ++i){
+			Row row = rows.get(i);
+			int wid = esql.closedKeys.nextKey();
+			esql.addBatch(BatchRunner.INSERT_CLOSED, wid, row.rid, row.mid, row.date, row.comment, row.bill);
+			long[] bill = bills.get(row.customer);
+			if(bill == null){
+				bill = new long[2];
+				bills.put(row.customer, bill);
+			}
+			bill[0] += row.bill;
+			bill[1]++;
+			rids[i] = row.rid;
+			mids[i] = row.mid;
+			amounts[i] = row.bill;
+			dates[i] = row.date;
+			printed.add(new String[]{ String.valueOf(wid), String.valueOf(row.rid), String.valueOf(row.mid), row.date, row.comment, String.valueOf(row.bill) });
+		}
+		for(Map.Entry<Integer, long[]> bill : bills.entrySet()){
+			esql.addBatch(ADD_BILLS, bill.getKey(), bill.getValue()[0], (int) bill.getValue()[1]);
+		}
+
+		esql.beginTransaction();
+		try{
+			esql.executeBatch(BatchRunner.INSERT_CLOSED);
+			esql.executeBatch(ADD_BILLS);
+			esql.executeUpdate(ADD_REVENUE, array(rids), array(mids), array(dates), array(amounts));
+			esql.executeUpdate(DEQUEUE_REQUESTS, array(rids));
+			esql.commitTransaction();
+		}catch(SQLException e){
+			SQLException cause = e.getNextException() != null ? e.getNextException() : e;
+			esql.out.println("Nothing closed, the requests were rolled back: " + cause.getMessage());
+			//the bills were never sent if the closed requests failed
+			esql.getStatementCache().prepare(ADD_BILLS).clearBatch();
+			return 0;
+		}finally{
+			esql.rollbackTransaction();
+		}
+		esql.printResult(new String[]{ "wid", "rid", "mid", "date", "comment", "bill" }, printed);
+		return rows.size();
+	}
+
+	/**
+	 * @return the row of one line, without the database checks
+	 */
+	private static Row parse(int lineNo, String line){
+		String[] f = line.split("\\|", -1);
+		if(f.length < 5){
+			throw new IllegalArgumentException("needs rid|mechanic id|date|comment|bill");
+		}
+		//the comment is everything between the date and the bill, it may hold a '|'
+		StringBuilder comment = new StringBuilder(f[3]);
+		for(int i = 4; i < f.length - 1; ++i){
+			comment.append('|').append(f[i]);
+		}
+		int bill = number(f[f.length - 1]);
+		if(bill <= 0){
+			throw new IllegalArgumentException("the bill must be more than 0");
+		}
+		return new Row(lineNo, number(f[0]), number(f[1]), f[2].trim(), comment.toString().trim(), bill);
+	}
+
+	private static int number(String field){
+		try{
+			return Integer.parseInt(field.trim());
+		}catch(NumberFormatException e){
+			throw new IllegalArgumentException("'" + field.trim() + "' is not a number");
+		}
+	}
+
+	/**
+	 * @return the values as a Postgres array literal, each one quoted, e.g. for CAST(? AS DATE[])
+	 */
+	private static String array(String[] values){
+		StringBuilder literal = new StringBuilder("{");
+		for(int i = 0; i < values.length; ++i){
+			literal.append(i > 0 ? ",\"" : "\"").append(values[i].replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+		}
+		return literal.append('}').toString();
+	}
+
+	/**
+	 * @return the numbers as a Postgres array literal, for CAST(? AS INTEGER[])
+	 */
+	private static String array(int[] values){
+		StringBuilder literal = new StringBuilder("{");
+		for(int i = 0; i < values.length; ++i){
+			literal.append(i > 0 ? "," : "").append(values[i]);
+		}
+		return literal.append('}').toString();
+	}
+}//end BulkCloser
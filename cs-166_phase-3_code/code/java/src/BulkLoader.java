@@ -0,0 +1,520 @@
+/*
+ * In-process bulk loader for the MechanicShop data
+ * ================================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.postgresql.PGConnection;
+
+/**
+ * This class loads the CSV files in data/ into a fresh schema without
+ * needing access to the server's file system.  Every file is streamed
+ * through COPY FROM STDIN on its own pooled connection.  Tables that do not
+ * reference each other are loaded in parallel, one dependency level at a
+ * time.  The primary and foreign keys and the other indexes are dropped
+ * before the load and built again afterwards, which is much cheaper than
+ * checking and indexing the rows one by one.  For the same reason the
+ * triggers of Service_Request and Closed_Request are off during the load; the
+ * key checks they make are done once afterwards for all rows.
+ *
+ * The steps are the same as createPostgreDB.sh: create.sql, the data, then
+ * after_load.sql.  The data can also come straight from a DataGenerator
+ * instead of the files.
+ *
+ */
+
+public class BulkLoader{
+	/**
+	 * A table and the CSV file it is loaded from.
+	 */
+	static class Table{
+		final String name;
+		final String file;
+		final String columns;
+
+		Table(String name, String file, String columns){
+			this.name = name;
+			this.file = file;
+			this.columns = columns;
+		}
+	}//end Table
+
+	//tables in the same level do not reference each other
+	static final Table[][] LEVELS = {
+		{
+			new Table("Customer", "customer.csv", "id, fname, lname, phone, address"),
+			new Table("Mechanic", "mechanic.csv", "id, fname, lname, experience"),
+			new Table("Car", "car.csv", "vin, make, model, year")
+		},
+		{
+			new Table("Owns", "owns.csv", "ownership_id, customer_id, car_vin"),
+			new Table("Service_Request", "service_request.csv", "rid, customer_id, car_vin, date, odometer, complain")
+		},
+		{
+			new Table("Closed_Request", "closed_request.csv", "wid, rid, mid, date, comment, bill")
+		}
+	};
+
+	/**
+	 * A primary or foreign key, or an index, taken off a table for the load.
+	 */
+	static class Constraint{
+		final String table;
+		final String name;
+		final String definition;
+		final boolean primary;
+
+		Constraint(String table, String name, String definition, boolean primary){
+			this.table = table;
+			this.name = name;
+			this.definition = definition;
+			this.primary = primary;
+		}
+	}//end Constraint
+
+	private final ConnectionPool pool;
+
+	/**
+	 * @param pool the pool to load with, as many connections as the widest level
+	 */
+	public BulkLoader(ConnectionPool pool){
+		this.pool = pool;
+	}
+
+	/**
+	 * Method to recreate the schema and load every table.
+	 *
+	 * @param dataDir the directory holding the CSV files
+	 * @param sqlDir the directory holding create.sql and after_load.sql
+	 * @throws java.lang.Exception when a step failed, the load stops there
+	 */
+	public void load(File dataDir, File sqlDir) throws Exception {
+		load(dataDir, null, sqlDir);
+	}
+
+	/**
+	 * Method to recreate the schema and load every table with generated
+	 * rows, which are never written to a file.
+	 *
+	 * @param generator makes the rows of each table
+	 * @param sqlDir the directory holding create.sql and after_load.sql
+	 * @throws java.lang.Exception when a step failed, the load stops there
+	 */
+	public void load(DataGenerator generator, File sqlDir) throws Exception {
+		load(null, generator, sqlDir);
+	}
+
+	private void load(final File dataDir, final DataGenerator generator, File sqlDir) throws Exception {
+		long start = System.nanoTime();
+		ExecutorService workers = Executors.newFixedThreadPool(pool.getSize());
+		try{
+			System.out.println("Creating schema from " + new File(sqlDir, "create.sql"));
+			runScript(new File(sqlDir, "create.sql"));
+
+			List<Constraint> constraints = dropConstraints();
+			List<Constraint> indexes = dropIndexes();
+			createMonthPartitions(dataDir, generator);
+			//the key triggers would look up every request's rid or wid one by one
+			setTriggers("Service_Request", false);
+			setTriggers("Closed_Request", false);
+			try{
+				loadTables(workers, dataDir, generator, sqlDir, constraints, indexes);
+				System.out.println("Checking request keys...");
+				checkRequestKeys();
+			}finally{
+				setTriggers("Service_Request", true);
+				setTriggers("Closed_Request", true);
+			}
+			runScript("ANALYZE");
+		}finally{
+			workers.shutdownNow();
+		}
+		System.out.printf("Load finished in %.1fs%n", (System.nanoTime() - start) / 1e9);
+	}
+
+	/**
+	 * Method to copy every table, put the keys and indexes back and run
+	 * after_load.sql.
+	 */
+	private void loadTables(ExecutorService workers, final File dataDir, final DataGenerator generator, File sqlDir,
+		List<Constraint> constraints, List<Constraint> indexes) throws Exception {
+		for(int level = 0; level < LEVELS.length; ++level){
+			List<Future<String>> loads = new ArrayList<Future<String>>();
+			for(final Table table : LEVELS[level]){
+				loads.add(workers.submit(new Callable<String>(){
+					public String call() throws Exception {
+						Reader reader = generator != null ? generator.open(table.file)
+							: new BufferedReader(new InputStreamReader(new FileInputStream(new File(dataDir, table.file)), StandardCharsets.UTF_8), 1 << 16);
+						return copyIn(table, reader);
+					}
+				}));
+			}
+			for(Future<String> load : loads){
+				System.out.println(await(load));
+			}
+		}
+
+		//keys are built per table in parallel, foreign keys need the primary keys first
+		System.out.println("Building keys...");
+		addConstraints(workers, constraints, true);
+		addConstraints(workers, constraints, false);
+		System.out.println("Building indexes...");
+		addIndexes(workers, indexes);
+
+		System.out.println("Running " + new File(sqlDir, "after_load.sql"));
+		runScript(new File(sqlDir, "after_load.sql"));
+	}
+
+	/**
+	 * Method to create the month partitions of the loaded rows before they
+	 * are copied, so COPY puts each row in its month and nothing has to be
+	 * moved out of the default partition afterwards.  The months come from
+	 * the date column of the CSV files, or from the generator's date range.
+	 */
+	private void createMonthPartitions(File dataDir, DataGenerator generator) throws SQLException, IOException {
+		StringBuilder sql = new StringBuilder();
+		int created = 0;
+		for(Table[] level : LEVELS){
+			for(Table table : level){
+				int column = Arrays.asList(table.columns.split(", ")).indexOf("date");
+				if(column < 0){
+					continue;
+				}
+				Set<LocalDate> months = new TreeSet<LocalDate>();
+				if(generator != null){
+					for(LocalDate day = generator.firstDay().withDayOfMonth(1); !day.isAfter(generator.lastDay()); day = day.plusMonths(1)){
+						months.add(day);
+					}
+				}else{
+					readMonths(new File(dataDir, table.file), column, months);
+				}
+				for(LocalDate month : months){
+					sql.append("SELECT create_month_partition('").append(table.name.toLowerCase()).append("', '").append(month).append("');\n");
+					++created;
+				}
+			}
+		}
+		if(created > 0){
+			System.out.println("Creating " + created + " month partitions...");
+			runScript(sql.toString());
+		}
+	}
+
+	/**
+	 * Method to find the months of a CSV file's dates, written e.g. 5/20/2016 00:00.
+	 * A date in another format is skipped; its row goes to the default
+	 * partition and after_load.sql moves it.
+	 */
+	private static void readMonths(File file, int column, Set<LocalDate> months) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8), 1 << 16);
+		try{
+			String line;
+			while((line = reader.readLine()) != null){
+				String[] fields = line.split(",", column + 2);
+				if(fields.length <= column){
+					continue;
+				}
+				String[] date = fields[column].trim().split("[/ ]");
+				try{
+					months.add(LocalDate.of(Integer.parseInt(date[2]), Integer.parseInt(date[0]), 1));
+				}catch(RuntimeException e){
+					// not M/D/YYYY, left to after_load.sql.
+				}
+			}
+		}finally{
+			reader.close();
+		}
+	}
+
+	/**
+	 * Method to turn the triggers of a table and of each of its partitions
+	 * on or off.  The triggers are named on the partitioned table, which
+	 * passes the change on to its partitions; DISABLE TRIGGER USER does not.
+	 */
+	private void setTriggers(String table, boolean enabled) throws SQLException {
+		ConnectionPool.PooledConnection pooled = pool.borrow();
+		try{
+			Statement stmt = pooled.connection.createStatement();
+			List<String> names = new ArrayList<String>();
+			ResultSet rs = stmt.executeQuery("SELECT tgname FROM pg_trigger " +
+				"WHERE tgrelid = CAST('" + table.toLowerCase() + "' AS regclass) AND NOT tgisinternal");
+			while(rs.next()){
+				names.add(rs.getString(1));
+			}
+			rs.close();
+			for(String name : names){
+				stmt.executeUpdate("ALTER TABLE " + table + (enabled ? " ENABLE" : " DISABLE") + " TRIGGER " + name);
+			}
+			stmt.close();
+		}finally{
+			pool.release(pooled);
+		}
+	}
+
+	/**
+	 * Method to do the checks of the request triggers, which were off during
+	 * the load, for all rows at once: rid and wid are unique, and every
+	 * closed request has its service request.
+	 *
+	 * @throws java.sql.SQLException when a check failed
+	 */
+	private void checkRequestKeys() throws SQLException {
+		firstRowFails("SELECT rid FROM Service_Request GROUP BY rid HAVING count(*) > 1 LIMIT 1",
+			"Service request %s is loaded more than once", "23505");
+		firstRowFails("SELECT wid FROM Closed_Request GROUP BY wid HAVING count(*) > 1 LIMIT 1",
+			"Closed request %s is loaded more than once", "23505");
+		firstRowFails("SELECT CR.rid FROM Closed_Request CR WHERE NOT EXISTS (SELECT 1 FROM Service_Request SR WHERE SR.rid = CR.rid) LIMIT 1",
+			"Service request %s of a closed request does not exist", "23503");
+	}
+
+	/**
+	 * Method to run a query that finds the first bad row, if any.
+	 *
+	 * @param message the error, with %s for the first column of the bad row
+	 * @throws java.sql.SQLException with the message and state when there is a row
+	 */
+	private void firstRowFails(String query, String message, String state) throws SQLException {
+		ConnectionPool.PooledConnection pooled = pool.borrow();
+		try{
+			Statement stmt = pooled.connection.createStatement();
+			ResultSet rs = stmt.executeQuery(query);
+			try{
+				if(rs.next()){
+					throw new SQLException(String.format(message, rs.getString(1)), state);
+				}
+			}finally{
+				rs.close();
+				stmt.close();
+			}
+		}finally{
+			pool.release(pooled);
+		}
+	}
+
+	/**
+	 * Method to stream one CSV file into its table.  The reader is closed.
+	 *
+	 * @return a line reporting rows and rows/sec
+	 */
+	String copyIn(Table table, Reader reader) throws SQLException, IOException {
+		ConnectionPool.PooledConnection pooled;
+		try{
+			pooled = pool.borrow();
+		}catch(SQLException e){
+			reader.close();
+			throw e;
+		}
+		try{
+			long start = System.nanoTime();
+			long rows = pooled.connection.unwrap(PGConnection.class).getCopyAPI().copyIn(
+				"COPY " + table.name + " (" + table.columns + ") FROM STDIN WITH DELIMITER ','", reader);
+			double seconds = (System.nanoTime() - start) / 1e9;
+			return String.format("%-16s %10d rows in %6.2fs (%.0f rows/sec)",
+				table.name, rows, seconds, rows / Math.max(seconds, 1e-9));
+		}finally{
+			reader.close();
+			pool.release(pooled);
+		}
+	}
+
+	/**
+	 * Method to drop the primary keys of the loaded tables and every foreign
+	 * key that points to or from one of them, foreign keys first.  A table
+	 * that is not loaded, like Open_Request, can still hold a key to one that
+	 * is.
+	 *
+	 * @return the dropped constraints with their definitions
+	 */
+	private List<Constraint> dropConstraints() throws SQLException {
+		String names = tableNames();
+		List<Constraint> constraints = new ArrayList<Constraint>();
+		ConnectionPool.PooledConnection pooled = pool.borrow();
+		try{
+			Statement stmt = pooled.connection.createStatement();
+			ResultSet rs = stmt.executeQuery(
+				"SELECT c.relname, k.conname, pg_get_constraintdef(k.oid), k.contype = 'p' " +
+				"FROM pg_constraint k JOIN pg_class c ON c.oid = k.conrelid LEFT JOIN pg_class r ON r.oid = k.confrelid " +
+				//the copies on the partitions go with their parent's constraint
+				"WHERE k.conparentid = 0 AND pg_table_is_visible(c.oid) AND (c.relname IN (" + names + ") " +
+				"OR (k.contype = 'f' AND r.relname IN (" + names + ") AND pg_table_is_visible(r.oid))) " +
+				"ORDER BY k.contype = 'p'");
+			while(rs.next()){
+				constraints.add(new Constraint(rs.getString(1), rs.getString(2), rs.getString(3), rs.getBoolean(4)));
+			}
+			rs.close();
+			for(Constraint constraint : constraints){
+				stmt.executeUpdate("ALTER TABLE " + constraint.table + " DROP CONSTRAINT " + constraint.name);
+			}
+			stmt.close();
+		}finally{
+			pool.release(pooled);
+		}
+		return constraints;
+	}
+
+	/**
+	 * Method to drop the indexes of the loaded tables that do not belong to
+	 * a constraint.  Dropping the index of a partitioned table drops it on
+	 * every partition too.
+	 *
+	 * @return the dropped indexes, with their CREATE INDEX statements as definition
+	 */
+	private List<Constraint> dropIndexes() throws SQLException {
+		List<Constraint> indexes = new ArrayList<Constraint>();
+		ConnectionPool.PooledConnection pooled = pool.borrow();
+		try{
+			Statement stmt = pooled.connection.createStatement();
+			ResultSet rs = stmt.executeQuery(
+				"SELECT c.relname, i.relname, pg_get_indexdef(i.oid) " +
+				"FROM pg_index x JOIN pg_class i ON i.oid = x.indexrelid JOIN pg_class c ON c.oid = x.indrelid " +
+				"WHERE c.relname IN (" + tableNames() + ") AND pg_table_is_visible(c.oid) " +
+				"AND NOT EXISTS (SELECT 1 FROM pg_constraint k WHERE k.conindid = i.oid)");
+			while(rs.next()){
+				//the definition of a partitioned table's index is ON ONLY, which would leave out the partitions
+				indexes.add(new Constraint(rs.getString(1), rs.getString(2), rs.getString(3).replace(" ON ONLY ", " ON "), false));
+			}
+			rs.close();
+			for(Constraint index : indexes){
+				stmt.executeUpdate("DROP INDEX " + index.name);
+			}
+			stmt.close();
+		}finally{
+			pool.release(pooled);
+		}
+		return indexes;
+	}
+
+	/**
+	 * Method to build the dropped indexes again, one table per worker.
+	 */
+	private void addIndexes(ExecutorService workers, List<Constraint> indexes) throws Exception {
+		List<Future<String>> builds = new ArrayList<Future<String>>();
+		for(Table[] level : LEVELS){
+			for(Table table : level){
+				final StringBuilder sql = new StringBuilder();
+				for(Constraint index : indexes){
+					if(index.table.equalsIgnoreCase(table.name)){
+						sql.append(index.definition).append(";\n");
+					}
+				}
+				if(sql.length() > 0){
+					builds.add(workers.submit(new Callable<String>(){
+						public String call() throws Exception {
+							runScript(sql.toString());
+							return sql.toString();
+						}
+					}));
+				}
+			}
+		}
+		for(Future<String> build : builds){
+			await(build);
+		}
+	}
+
+	/**
+	 * @return the names of the loaded tables as a list of SQL strings
+	 */
+	private static String tableNames(){
+		StringBuilder names = new StringBuilder();
+		for(Table[] level : LEVELS){
+			for(Table table : level){
+				names.append(names.length() == 0 ? "" : ",").append("'").append(table.name.toLowerCase()).append("'");
+			}
+		}
+		return names.toString();
+	}
+
+	/**
+	 * Method to put back either the primary or the foreign keys, one table
+	 * per worker.
+	 */
+	private void addConstraints(ExecutorService workers, List<Constraint> constraints, boolean primary) throws Exception {
+		//the foreign keys of tables that are not loaded are put back too
+		Map<String, StringBuilder> byTable = new LinkedHashMap<String, StringBuilder>();
+		for(Constraint constraint : constraints){
+			if(constraint.primary != primary){
+				continue;
+			}
+			StringBuilder sql = byTable.get(constraint.table);
+			if(sql == null){
+				sql = new StringBuilder("ALTER TABLE " + constraint.table + " ");
+				byTable.put(constraint.table, sql);
+			}else{
+				sql.append(", ");
+			}
+			sql.append("ADD CONSTRAINT ").append(constraint.name).append(" ").append(constraint.definition);
+		}
+		List<Future<String>> builds = new ArrayList<Future<String>>();
+		for(final StringBuilder sql : byTable.values()){
+			builds.add(workers.submit(new Callable<String>(){
+				public String call() throws Exception {
+					runScript(sql.toString());
+					return sql.toString();
+				}
+			}));
+		}
+		for(Future<String> build : builds){
+			await(build);
+		}
+	}
+
+	private void runScript(File script) throws SQLException, IOException {
+		runScript(new String(Files.readAllBytes(script.toPath()), StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Method to run one or more SQL statements on a pooled connection.
+	 */
+	void runScript(String sql) throws SQLException {
+		ConnectionPool.PooledConnection pooled = pool.borrow();
+		try{
+			Connection conn = pooled.connection;
+			Statement stmt = conn.createStatement();
+			stmt.execute(sql);
+			stmt.close();
+		}finally{
+			pool.release(pooled);
+		}
+	}
+
+	private static <T> T await(Future<T> future) throws Exception {
+		try{
+			return future.get();
+		}catch(ExecutionException e){
+			if(e.getCause() instanceof Exception){
+				throw (Exception) e.getCause();
+			}
+			throw e;
+		}
+	}
+}//end BulkLoader
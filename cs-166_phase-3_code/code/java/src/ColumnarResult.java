@@ -0,0 +1,207 @@
+/*
+ * Columnar query result for MechanicShop
+ * ======================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * This class holds a query result column by column.  Integer columns
+ * (id, year, odometer, bill, counts, ...) are kept in primitive int[] or
+ * long[] arrays, every other column in a String[].  Reports can then sum, sort
+ * or compare numbers without boxing them or parsing them back from text.
+ * SQL NULLs are tracked per column and read as 0 or null.
+ *
+ */
+
+public class ColumnarResult{
+	private static final int INITIAL_CAPACITY = 64;
+
+	private final String[] names;
+	private final int[] types;
+	//one of these is set per column, depending on its type
+	private final int[][] ints;
+	private final long[][] longs;
+	private final String[][] strings;
+	private final BitSet[] nulls;
+	private int rowCount = 0;
+	//size of the values read: 4 or 8 per number, the text length otherwise
+	private long bytes = 0;
+
+	/**
+	 * Method to read every remaining row of a result set.
+	 *
+	 * @param rs the result set, positioned before the first row
+	 * @throws java.sql.SQLException when reading the result set failed
+	 */
+	public ColumnarResult(ResultSet rs) throws SQLException {
+		ResultSetMetaData rsmd = rs.getMetaData();
+		int numCol = rsmd.getColumnCount();
+		names = new String[numCol];
+		types = new int[numCol];
+		ints = new int[numCol][];
+		longs = new long[numCol][];
+		strings = new String[numCol][];
+		nulls = new BitSet[numCol];
+		for(int i = 0; i < numCol; ++i){
+			names[i] = rsmd.getColumnName(i + 1);
+			switch(rsmd.getColumnType(i + 1)){
+				case Types.INTEGER: case Types.SMALLINT: case Types.TINYINT:
+					types[i] = Types.INTEGER;
+					ints[i] = new int[INITIAL_CAPACITY];
+					break;
+				case Types.BIGINT:
+					types[i] = Types.BIGINT;
+					longs[i] = new long[INITIAL_CAPACITY];
+					break;
+				default:
+					types[i] = Types.VARCHAR;
+					strings[i] = new String[INITIAL_CAPACITY];
+			}
+			nulls[i] = new BitSet();
+		}
+
+		while(rs.next()){
+			for(int i = 0; i < numCol; ++i){
+				switch(types[i]){
+					case Types.INTEGER:
+						if(rowCount == ints[i].length) ints[i] = Arrays.copyOf(ints[i], rowCount * 2);
+						ints[i][rowCount] = rs.getInt(i + 1);
+						bytes += 4;
+						break;
+					case Types.BIGINT:
+						if(rowCount == longs[i].length) longs[i] = Arrays.copyOf(longs[i], rowCount * 2);
+						longs[i][rowCount] = rs.getLong(i + 1);
+						bytes += 8;
+						break;
+					default:
+						if(rowCount == strings[i].length) strings[i] = Arrays.copyOf(strings[i], rowCount * 2);
+						strings[i][rowCount] = rs.getString(i + 1);
+						bytes += strings[i][rowCount] == null ? 0 : strings[i][rowCount].length();
+				}
+				if(rs.wasNull()){
+					nulls[i].set(rowCount);
+				}
+			}
+			++rowCount;
+		}
+	}
+
+	public int getRowCount(){
+		return rowCount;
+	}
+
+	/**
+	 * @return the size of the values read, for the metrics
+	 */
+	public long getByteCount(){
+		return bytes;
+	}
+
+	public int getColumnCount(){
+		return names.length;
+	}
+
+	/**
+	 * @param col the column, starting at 0
+	 * @return the column's name
+	 */
+	public String getColumnName(int col){
+		return names[col];
+	}
+
+	/**
+	 * @param col the column, starting at 0
+	 * @return true if the column is held as int[] or long[]
+	 */
+	public boolean isNumeric(int col){
+		return types[col] != Types.VARCHAR;
+	}
+
+	public boolean isNull(int row, int col){
+		return nulls[col].get(row);
+	}
+
+	/**
+	 * Method to read an integer cell.
+	 *
+	 * @throws java.lang.IllegalArgumentException when the column is not numeric
+	 */
+	public long getLong(int row, int col){
+		checkRow(row);
+		if(types[col] == Types.INTEGER) return ints[col][row];
+		if(types[col] == Types.BIGINT) return longs[col][row];
+		throw new IllegalArgumentException("Column " + names[col] + " is not an integer column");
+	}
+
+	/**
+	 * Method to read an int column cell.
+	 *
+	 * @throws java.lang.IllegalArgumentException when the column is not an int column
+	 */
+	public int getInt(int row, int col){
+		checkRow(row);
+		if(types[col] != Types.INTEGER){
+			throw new IllegalArgumentException("Column " + names[col] + " is not an int column");
+		}
+		return ints[col][row];
+	}
+
+	/**
+	 * Method to read any cell as text, numbers are formatted on the fly.
+	 */
+	public String getString(int row, int col){
+		checkRow(row);
+		if(nulls[col].get(row)) return null;
+		if(types[col] == Types.VARCHAR) return strings[col][row];
+		return String.valueOf(getLong(row, col));
+	}
+
+	/**
+	 * Method to get the backing array of an int column.  Only the first
+	 * getRowCount() entries are valid.
+	 */
+	public int[] intColumn(int col){
+		if(types[col] != Types.INTEGER){
+			throw new IllegalArgumentException("Column " + names[col] + " is not an int column");
+		}
+		return ints[col];
+	}
+
+	/**
+	 * Method to get the backing array of a bigint column.  Only the first
+	 * getRowCount() entries are valid.
+	 */
+	public long[] longColumn(int col){
+		if(types[col] != Types.BIGINT){
+			throw new IllegalArgumentException("Column " + names[col] + " is not a bigint column");
+		}
+		return longs[col];
+	}
+
+	/**
+	 * Method to get the backing array of a text column.  Only the first
+	 * getRowCount() entries are valid.
+	 */
+	public String[] stringColumn(int col){
+		if(types[col] != Types.VARCHAR){
+			throw new IllegalArgumentException("Column " + names[col] + " is not a text column");
+		}
+		return strings[col];
+	}
+
+	private void checkRow(int row){
+		if(row < 0 || row >= rowCount){
+			throw new IndexOutOfBoundsException("Row " + row + " of " + rowCount);
+		}
+	}
+}//end ColumnarResult
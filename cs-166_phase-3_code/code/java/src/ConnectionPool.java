@@ -0,0 +1,161 @@
+/*
+ * Bounded JDBC connection pool for the MechanicShop server mode
+ * =============================================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class shares a bounded number of physical connections between the
+ * front desk sessions.  Connections are opened lazily up to the pool size and
+ * checked with isValid before they are handed out again, so a connection the
+ * server dropped is replaced instead of failing a desk.  A session that cannot
+ * get a connection within the borrow timeout gets an SQLTimeoutException.
+ *
+ * Each pooled connection keeps its own StatementCache, so prepared statements
+ * survive across the sessions that borrow it.
+ *
+ */
+
+public class ConnectionPool{
+	public static final long DEFAULT_BORROW_TIMEOUT_MILLIS = 10000;
+	//seconds the server gets to answer a health check
+	public static final int VALIDATION_TIMEOUT_SECONDS = 2;
+	//seconds the server gets to accept a new connection
+	public static final int LOGIN_TIMEOUT_SECONDS = 10;
+
+	/**
+	 * A physical connection together with its prepared statement cache.
+	 */
+	public static class PooledConnection{
+		public final Connection connection;
+		public final StatementCache statements;
+
+		PooledConnection(Connection connection){
+			this.connection = connection;
+			this.statements = new StatementCache(connection, StatementCache.DEFAULT_CAPACITY);
+		}
+
+		void close(){
+			statements.close();
+			try{
+				connection.close();
+			}catch(SQLException e){
+				// ignored.
+			}
+		}
+	}//end PooledConnection
+
+	private final String url;
+	private final Properties props;
+	private final int size;
+	private final long borrowTimeoutMillis;
+	//one permit per connection that may be handed out
+	private final Semaphore permits;
+	private final LinkedBlockingQueue<PooledConnection> idle = new LinkedBlockingQueue<PooledConnection>();
+	private volatile boolean closed = false;
+
+	public ConnectionPool(String url, String user, String passwd, int size, long borrowTimeoutMillis){
+		this.url = url;
+		this.props = new Properties();
+		this.props.setProperty("user", user);
+		this.props.setProperty("password", passwd);
+		this.props.setProperty("loginTimeout", String.valueOf(LOGIN_TIMEOUT_SECONDS));
+		this.size = size;
+		this.borrowTimeoutMillis = borrowTimeoutMillis;
+		this.permits = new Semaphore(size, true);
+	}
+
+	/**
+	 * Method to take a healthy connection from the pool, opening a new one if
+	 * no idle connection is left.  Blocks while all connections are in use.
+	 *
+	 * @return a connection in autocommit mode
+	 * @throws java.sql.SQLException when the pool is closed, the borrow timeout
+	 *         expired or a new connection could not be opened
+	 */
+	public PooledConnection borrow() throws SQLException {
+		if(closed){
+			throw new SQLException("Connection pool is closed");
+		}
+		try{
+			if(!permits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS)){
+				throw new SQLTimeoutException("Timed out after " + borrowTimeoutMillis + "ms waiting for a database connection");
+			}
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a database connection");
+		}
+		try{
+			PooledConnection pooled;
+			while((pooled = idle.poll()) != null){
+				if(pooled.connection.isValid(VALIDATION_TIMEOUT_SECONDS)){
+					return pooled;
+				}
+				//the server dropped it, throw it away and try the next one
+				pooled.close();
+			}
+			return new PooledConnection(DriverManager.getConnection(url, props));
+		}catch(SQLException e){
+			permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Method to give a connection back to the pool.  Any transaction left open
+	 * is rolled back; a connection that cannot be reset is closed instead.
+	 *
+	 * @param pooled the connection returned by borrow
+	 */
+	public void release(PooledConnection pooled){
+		try{
+			if(closed || pooled.connection.isClosed()){
+				pooled.close();
+				return;
+			}
+			if(!pooled.connection.getAutoCommit()){
+				pooled.connection.rollback();
+				pooled.connection.setAutoCommit(true);
+			}
+			idle.offer(pooled);
+		}catch(SQLException e){
+			pooled.close();
+		}finally{
+			permits.release();
+		}
+	}
+
+	/**
+	 * @return the largest number of connections this pool opens
+	 */
+	public int getSize(){
+		return size;
+	}
+
+	/**
+	 * Method to close the idle connections and refuse further borrows.
+	 * Connections still in use are closed when they are released.
+	 */
+	public void close(){
+		closed = true;
+		List<PooledConnection> drained = new ArrayList<PooledConnection>();
+		idle.drainTo(drained);
+		for(PooledConnection pooled : drained){
+			pooled.close();
+		}
+	}
+}//end ConnectionPool
@@ -0,0 +1,161 @@
+/*
+ * Customer name lookup for MechanicShop
+ * =====================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * This class finds customers by the start of their name without asking the
+ * database.  Customers are kept in a sorted map keyed by lower case last
+ * name, first name and id, so a prefix search is a range scan that returns one
+ * page at a time in O(log n + page).  The index is loaded at startup and
+ * AddCustomer adds to it; one index is shared by all sessions of a server.
+ *
+ * Names that match no prefix (typos) are looked up by trigram similarity in
+ * the database, using the gin_trgm_ops indexes from create.sql.
+ *
+ * A query is a last name prefix, optionally followed by a comma and a first
+ * name prefix, e.g. "smi" or "Smith, Jo".  Case does not matter.
+ *
+ */
+
+public class CustomerNameIndex{
+	/**
+	 * One customer, as shown in a candidate list.
+	 */
+	public static class Entry{
+		public final int id;
+		public final String fname;
+		public final String lname;
+		//position in the index, pass it back to get the next page
+		public final String key;
+
+		Entry(int id, String fname, String lname){
+			this.id = id;
+			this.fname = fname.trim();
+			this.lname = lname.trim();
+			this.key = this.lname.toLowerCase() + '\u0000' + this.fname.toLowerCase() + '\u0000' + String.format("%010d", id);
+		}
+	}//end Entry
+
+	private final ConcurrentSkipListMap<String, Entry> byName = new ConcurrentSkipListMap<String, Entry>();
+
+	/**
+	 * Method to (re)load every customer name from the database.
+	 *
+	 * @param esql a session with a connection
+	 * @throws java.sql.SQLException when reading the names failed
+	 */
+	public void load(MechanicShop esql) throws SQLException {
+		byName.clear();
+		esql.executeQueryAndVisit("SELECT id, fname, lname FROM Customer", new RowVisitor(){
+			public void visit(ResultSet rs) throws SQLException {
+				add(rs.getInt(1), rs.getString(2), rs.getString(3));
+			}
+		});
+	}
+
+	/**
+	 * Method to add a customer, called by AddCustomer after its insert.
+	 */
+	public void add(int id, String fname, String lname){
+		Entry entry = new Entry(id, fname, lname);
+		byName.put(entry.key, entry);
+	}
+
+	/**
+	 * Method to list the customers whose names start with the query, in
+	 * last name, first name, id order.
+	 *
+	 * @param query a last name prefix, optionally followed by ", <first name prefix>"
+	 * @param after the key of the last entry of the previous page, null for the first page
+	 * @param limit the most entries to return
+	 * @return the next page of matches
+	 */
+	public List<Entry> search(String query, String after, int limit){
+		String[] parts = splitQuery(query);
+		//with a first name, the last name has to match in full
+		String from = parts[1] == null ? parts[0] : parts[0] + '\u0000' + parts[1];
+		String to = from + '\uffff';
+		List<Entry> page = new ArrayList<Entry>();
+		Map<String, Entry> range = after == null
+			? byName.subMap(from, true, to, false)
+			: byName.subMap(after, false, to, false);
+		for(Entry entry : range.values()){
+			if(page.size() >= limit){
+				break;
+			}
+			page.add(entry);
+		}
+		return page;
+	}
+
+	/**
+	 * Method to find the customers whose names look like the query, most
+	 * similar first.  This asks the database, so use it only when the prefix
+	 * search found nothing.
+	 *
+	 * @param esql a session with a connection
+	 * @param query a last name, optionally followed by ", <first name>"
+	 * @param limit the most entries to return
+	 * @return the closest matches
+	 * @throws java.sql.SQLException when the search failed
+	 */
+	public static List<Entry> fuzzySearch(MechanicShop esql, String query, int limit) throws SQLException {
+		String[] parts = splitQuery(query);
+		final List<Entry> matches = new ArrayList<Entry>();
+		RowVisitor collect = new RowVisitor(){
+			public void visit(ResultSet rs) throws SQLException {
+				matches.add(new Entry(rs.getInt(1), rs.getString(2), rs.getString(3)));
+			}
+		};
+		if(parts[1] == null){
+			esql.executeQueryAndVisit("SELECT id, fname, lname FROM Customer WHERE lower(lname) % ? " +
+				"ORDER BY similarity(lower(lname), ?) DESC, id LIMIT ?", collect, parts[0], parts[0], limit);
+		}else{
+			esql.executeQueryAndVisit("SELECT id, fname, lname FROM Customer WHERE lower(lname) % ? AND lower(fname) % ? " +
+				"ORDER BY similarity(lower(lname), ?) + similarity(lower(fname), ?) DESC, id LIMIT ?",
+				collect, parts[0], parts[1], parts[0], parts[1], limit);
+		}
+		return matches;
+	}
+
+	/**
+	 * @param query a last name prefix, optionally followed by ", <first name prefix>"
+	 * @return true if search would find the customer with this name for the query
+	 */
+	public static boolean matches(String query, String fname, String lname){
+		String[] parts = splitQuery(query);
+		String last = lname.trim().toLowerCase();
+		if(parts[1] == null){
+			return last.startsWith(parts[0]);
+		}
+		return last.equals(parts[0]) && fname.trim().toLowerCase().startsWith(parts[1]);
+	}
+
+	public int size(){
+		return byName.size();
+	}
+
+	/**
+	 * @return the lower case last name and first name (or null) of a query
+	 */
+	private static String[] splitQuery(String query){
+		int comma = query.indexOf(',');
+		if(comma < 0){
+			return new String[]{ query.trim().toLowerCase(), null };
+		}
+		String first = query.substring(comma + 1).trim().toLowerCase();
+		return new String[]{ query.substring(0, comma).trim().toLowerCase(), first.isEmpty() ? null : first };
+	}
+}//end CustomerNameIndex
@@ -0,0 +1,367 @@
+/*
+ * Synthetic data generator for MechanicShop
+ * =========================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.ArrayDeque;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class makes up a data set shaped like the one in data/, at any size,
+ * for load and scale testing.  Scale 1 is the size of the shipped files (500
+ * customers, 250 mechanics, 5000 cars and owners, 30000 requests); scale 350
+ * is about 10M requests.  The files have the same columns and formats and
+ * obey the domains in create.sql, and every key they refer to exists:
+ *
+ *   - every car has one owner, and a request is made by the owner of its car
+ *   - request dates grow with rid over 2012-2017, so they fill many month
+ *     partitions; a closed request is closed up to 30 days after it was made
+ *   - the oldest 90% of the requests are closed, closed request wid n closes rid n
+ *
+ * Every row is computed from the seed and its own row number only, so the
+ * same seed always gives the same files, whatever the number of threads.
+ * Rows are made in chunks by a pool of worker threads, ahead of whoever reads
+ * them through open(), which is how BulkLoader streams them straight into
+ * COPY without writing any file.
+ *
+ */
+
+public class DataGenerator{
+	public static final String[] FILES = {
+		"customer.csv", "mechanic.csv", "car.csv", "owns.csv", "service_request.csv", "closed_request.csv"
+	};
+	//rows made by one task
+	private static final int CHUNK_ROWS = 16384;
+	private static final LocalDate FIRST_DAY = LocalDate.of(2012, 1, 1);
+	private static final int DAYS = (int) (LocalDate.of(2018, 1, 1).toEpochDay() - FIRST_DAY.toEpochDay());
+	//odd and not a multiple of 5, so it maps 0..10^10-1 onto itself and the VIN digits never repeat
+	private static final long VIN_MULTIPLIER = 3141592653L;
+	private static final long VIN_DIGITS = 10000000000L;
+
+	private static final String[] FIRST_NAMES = {
+		"Armand", "Alberto", "Wyatt", "Alexandria", "Rory", "Blythe", "Maria", "James", "Linda", "Robert",
+		"Patricia", "Michael", "Jennifer", "David", "Elizabeth", "William", "Barbara", "Richard", "Susan", "Joseph",
+		"Jessica", "Thomas", "Sarah", "Charles", "Karen", "Daniel", "Nancy", "Matthew", "Lisa", "Anthony",
+		"Betty", "Mark", "Sandra", "Donald", "Ashley", "Steven", "Kimberly", "Paul", "Emily", "Andrew"
+	};
+	private static final String[] LAST_NAMES = {
+		"Enderle", "Scarlett", "Ruoff", "Cuyler", "Berner", "Santacruz", "Smith", "Johnson", "Williams", "Brown",
+		"Jones", "Garcia", "Miller", "Davis", "Rodriguez", "Martinez", "Hernandez", "Lopez", "Gonzalez", "Wilson",
+		"Anderson", "Thomas", "Taylor", "Moore", "Jackson", "Martin", "Lee", "Perez", "Thompson", "White",
+		"Harris", "Sanchez", "Clark", "Ramirez", "Lewis", "Robinson", "Walker", "Young", "Allen", "King"
+	};
+	private static final String[] STREETS = {
+		"Chapel Drive", "Bald Hill Street", "Campfire Ave.", "Oak Street", "Pine Lane", "Maple Avenue", "Cedar Court",
+		"Elm Road", "Lake View Drive", "Sunset Blvd.", "Hillcrest Road", "River Street", "Park Avenue", "Mill Road"
+	};
+	private static final String[] CITIES = {
+		"Melbourne", "Baton Rouge", "Cockeysville", "Riverside", "Springfield", "Fairview", "Madison", "Georgetown",
+		"Franklin", "Clinton", "Salem", "Greenville", "Bristol", "Dover", "Oxford", "Ashland"
+	};
+	private static final String[] MAKES = {
+		"Toyota", "Lamborghini", "Ford", "Superformance", "Morgan", "Campagna", "Saturn", "Marcos", "MB Roadcars",
+		"Caerham", "Alpina", "Volvo", "Honda", "Subaru", "Mazda", "Nissan", "Chevrolet", "Audi"
+	};
+	private static final String[] MODELS = {
+		"Prius", "M1", "Sunny", "Impreza", "C2", "C1", "C5", "Elentra", "DB8", "Summer", "Civic", "Corolla",
+		"Focus", "Outback", "Miata", "Camry", "A4", "Malibu"
+	};
+	private static final String[] COMPLAINTS = {
+		"I cannot hear the horn", "Change oil", "Replace windows", "I cannot hear the radio",
+		"Passenger side is always empty", "The wheel does not turn right", "It came back from space and it makes a funny noise",
+		"Burns too much gas", "It is not fast enough", "No brakes", "Needs new parachute", "Add rockets",
+		"It smells funny", "The wings do not work"
+	};
+	private static final String[] COMMENTS = {
+		"Needs new Tires", "Breaks", "Made it faster", "We changed the color", "Change Roof", "I do not know",
+		"Buy a new Car", "We lost your car", "Changed Oil", "You are missing an engine", "This is a bicycle",
+		"Good Luck", "Fixed!!!", "Breaks are ok"
+	};
+
+	private final long seed;
+	private final long customers;
+	private final long mechanics;
+	private final long cars;
+	private final long requests;
+	private final long closed;
+	private final int threads;
+	private final ExecutorService workers;
+
+	/**
+	 * @param seed the same seed always gives the same data
+	 * @param scale the size relative to the shipped data, e.g. 0.1 or 350
+	 * @param threads how many threads make the rows
+	 */
+	public DataGenerator(long seed, double scale, int threads){
+		this.seed = seed;
+		this.customers = Math.max(1, Math.round(500 * scale));
+		this.mechanics = Math.max(1, Math.round(250 * scale));
+		this.cars = Math.max(1, Math.round(5000 * scale));
+		this.requests = Math.max(1, Math.round(30000 * scale));
+		this.closed = requests * 9 / 10;
+		this.threads = threads;
+		this.workers = Executors.newFixedThreadPool(threads);
+	}
+
+	/**
+	 * @return the first day a request or closed request may have
+	 */
+	public LocalDate firstDay(){
+		return FIRST_DAY;
+	}
+
+	/**
+	 * @return the last day a request or closed request may have
+	 */
+	public LocalDate lastDay(){
+		return FIRST_DAY.plusDays(DAYS - 1);
+	}
+
+	/**
+	 * @param file one of FILES
+	 * @return how many rows the file has
+	 */
+	public long rows(String file){
+		switch(file){
+			case "customer.csv": return customers;
+			case "mechanic.csv": return mechanics;
+			case "car.csv": case "owns.csv": return cars;
+			case "service_request.csv": return requests;
+			case "closed_request.csv": return closed;
+			default: throw new IllegalArgumentException("No such data file: " + file);
+		}
+	}
+
+	/**
+	 * Method to read a file without writing it: the rows are made by the
+	 * worker threads a few chunks ahead of the reader.
+	 *
+	 * @param file one of FILES
+	 * @return the text of the file
+	 */
+	public Reader open(String file){
+		return new ChunkReader(file, rows(file));
+	}
+
+	/**
+	 * Method to write every file into a directory, one file after the other
+	 * with all threads working on each.
+	 *
+	 * @param dir the directory, created if needed
+	 * @throws java.io.IOException when a file could not be written
+	 */
+	public void writeTo(File dir) throws IOException {
+		if(!dir.isDirectory() && !dir.mkdirs()){
+			throw new IOException("Cannot create " + dir);
+		}
+		char[] buffer = new char[1 << 16];
+		for(String file : FILES){
+			long start = System.nanoTime();
+			Reader reader = open(file);
+			Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(dir, file)), StandardCharsets.UTF_8), 1 << 16);
+			try{
+				int n;
+				while((n = reader.read(buffer)) > 0){
+					writer.write(buffer, 0, n);
+				}
+			}finally{
+				reader.close();
+				writer.close();
+			}
+			double seconds = Math.max((System.nanoTime() - start) / 1e9, 1e-9);
+			System.out.printf("%-20s %10d rows in %6.2fs (%.0f rows/sec)%n", file, rows(file), seconds, rows(file) / seconds);
+		}
+	}
+
+	/**
+	 * Method to stop the worker threads.
+	 */
+	public void close(){
+		workers.shutdownNow();
+	}
+
+	/**
+	 * Method to append one row of a file, with its line end.
+	 */
+	void row(String file, long i, StringBuilder out){
+		SplittableRandom random = random(file.hashCode(), i);
+		switch(file){
+			case "customer.csv":
+				out.append(i).append(',').append(pick(random, FIRST_NAMES)).append(',').append(pick(random, LAST_NAMES)).append(',');
+				out.append('(').append(100 + random.nextInt(900)).append(')').append(100 + random.nextInt(900)).append('-');
+				pad(out, random.nextInt(10000), 4);
+				out.append(',').append(1 + random.nextInt(9999)).append(' ').append(pick(random, STREETS)).append(' ').append(pick(random, CITIES));
+				break;
+			case "mechanic.csv":
+				out.append(i).append(',').append(pick(random, FIRST_NAMES)).append(',').append(pick(random, LAST_NAMES)).append(',').append(random.nextInt(41));
+				break;
+			case "car.csv":
+				out.append(vin(i)).append(',').append(pick(random, MAKES)).append(',').append(pick(random, MODELS)).append(',').append(1970 + random.nextInt(49));
+				break;
+			case "owns.csv":
+				out.append(i).append(',').append(owner(i)).append(',').append(vin(i));
+				break;
+			case "service_request.csv":{
+				long car = random.nextLong(cars);
+				out.append(i).append(',').append(owner(car)).append(',').append(vin(car)).append(',');
+				date(out, requestDay(i));
+				out.append(',').append(1 + random.nextInt(250000)).append(',').append(pick(random, COMPLAINTS));
+				break;
+			}
+			case "closed_request.csv":
+				out.append(i).append(',').append(i).append(',').append(random.nextLong(mechanics)).append(',');
+				date(out, Math.min(requestDay(i) + random.nextInt(31), DAYS - 1));
+				out.append(',').append(pick(random, COMMENTS)).append(',').append(1 + random.nextInt(1000));
+				break;
+			default:
+				throw new IllegalArgumentException("No such data file: " + file);
+		}
+		out.append('\n');
+	}
+
+	/**
+	 * @return the VIN of car n: six letters, then ten digits that differ for every car
+	 */
+	String vin(long n){
+		SplittableRandom random = random(1, n);
+		char[] vin = new char[16];
+		for(int i = 0; i < 6; ++i){
+			vin[i] = (char) ('A' + random.nextInt(26));
+		}
+		long digits = Math.floorMod(n * VIN_MULTIPLIER + seed, VIN_DIGITS);
+		for(int i = 15; i >= 6; --i){
+			vin[i] = (char) ('0' + digits % 10);
+			digits /= 10;
+		}
+		return new String(vin);
+	}
+
+	/**
+	 * @return the customer id of the owner of car n
+	 */
+	long owner(long n){
+		return random(2, n).nextLong(customers);
+	}
+
+	/**
+	 * @return the day request rid was made, days after FIRST_DAY
+	 */
+	private int requestDay(long rid){
+		long day = rid * DAYS / requests + random(3, rid).nextInt(14);
+		return (int) Math.min(day, DAYS - 1);
+	}
+
+	private SplittableRandom random(int stream, long n){
+		return new SplittableRandom(mix(mix(seed + stream * 0x9E3779B97F4A7C15L) + n));
+	}
+
+	//the splitmix64 finalizer
+	private static long mix(long z){
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	private static String pick(SplittableRandom random, String[] values){
+		return values[random.nextInt(values.length)];
+	}
+
+	//the shipped format, e.g. 5/20/2016 00:00
+	private static void date(StringBuilder out, int day){
+		LocalDate date = FIRST_DAY.plusDays(day);
+		out.append(date.getMonthValue()).append('/').append(date.getDayOfMonth()).append('/').append(date.getYear()).append(" 00:00");
+	}
+
+	private static void pad(StringBuilder out, int value, int digits){
+		String text = Integer.toString(value);
+		for(int i = text.length(); i < digits; ++i){
+			out.append('0');
+		}
+		out.append(text);
+	}
+
+	/**
+	 * The text of one file, made a chunk at a time by the workers.  Up to
+	 * twice as many chunks as there are threads are made ahead of the reader.
+	 */
+	private class ChunkReader extends Reader{
+		private final String file;
+		private final long rows;
+		private final ArrayDeque<Future<String>> ahead = new ArrayDeque<Future<String>>();
+		private long nextRow = 0;
+		private String chunk = "";
+		private int position = 0;
+
+		ChunkReader(String file, long rows){
+			this.file = file;
+			this.rows = rows;
+			fill();
+		}
+
+		private void fill(){
+			while(ahead.size() < 2 * threads && nextRow < rows){
+				final long first = nextRow;
+				final long last = Math.min(first + CHUNK_ROWS, rows);
+				ahead.add(workers.submit(new Callable<String>(){
+					public String call(){
+						StringBuilder out = new StringBuilder((int) (last - first) * 64);
+						for(long i = first; i < last; ++i){
+							row(file, i, out);
+						}
+						return out.toString();
+					}
+				}));
+				nextRow = last;
+			}
+		}
+
+		public int read(char[] buffer, int offset, int length) throws IOException {
+			while(position == chunk.length()){
+				Future<String> next = ahead.poll();
+				if(next == null){
+					return -1;
+				}
+				try{
+					chunk = next.get();
+				}catch(InterruptedException e){
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while generating " + file);
+				}catch(ExecutionException e){
+					throw new IOException("Generating " + file + " failed", e.getCause());
+				}
+				position = 0;
+				fill();
+			}
+			int n = Math.min(length, chunk.length() - position);
+			chunk.getChars(position, position + n, buffer, offset);
+			position += n;
+			return n;
+		}
+
+		public void close(){
+			for(Future<String> pending : ahead){
+				pending.cancel(true);
+			}
+			ahead.clear();
+		}
+	}//end ChunkReader
+}//end DataGenerator
@@ -0,0 +1,303 @@
+/*
+ * Write-through entity cache for MechanicShop
+ * ===========================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class keeps the most recently used Customer, Mechanic and Car rows,
+ * keyed by their primary key, and for each customer the VINs of the cars they
+ * own.  A returning customer's second visit, e.g. opening a request and then
+ * having it closed, is answered from memory instead of the server.
+ *
+ * The insert paths put their new rows in the cache as they write them, so the
+ * cache never misses the shop's own writes.  Rows written by other programs
+ * are picked up when an entry is older than the time to live
+ * (mechanicshop.cache.ttl, seconds, default 300) and is read again.  Each kind
+ * of row keeps at most mechanicshop.cache.size entries (default 10000) and
+ * drops the least recently used one when full.  Only rows that exist are
+ * cached; a miss for an unknown key always goes to the database.
+ *
+ */
+
+public class EntityCache{
+	public static final int DEFAULT_CAPACITY = 10000;
+	public static final long DEFAULT_TTL_SECONDS = 300;
+	//the queries run on a miss
+	static final String CUSTOMER_SQL = "SELECT id, fname, lname, phone, address FROM Customer WHERE (id = ?)";
+	static final String MECHANIC_SQL = "SELECT id, fname, lname, experience FROM Mechanic WHERE (id = ?)";
+	static final String CAR_SQL = "SELECT vin, make, model, year FROM Car WHERE (vin = ?)";
+	static final String OWNED_CARS_SQL = "SELECT C.vin, C.make, C.model, C.year FROM Owns O, Car C WHERE (O.customer_id = ? AND O.car_vin = C.vin) ORDER BY O.ownership_id";
+
+	/**
+	 * One kind of row: an access ordered map with its hit and miss counts.
+	 */
+	private static class Region<K, V>{
+		private final String name;
+		private final long ttlNanos;
+		private final LinkedHashMap<K, Object[]> entries;
+		private long hits = 0;
+		private long misses = 0;
+
+		Region(String name, final int capacity, long ttlNanos){
+			this.name = name;
+			this.ttlNanos = ttlNanos;
+			//access ordered, so the eldest entry is the least recently used one
+			this.entries = new LinkedHashMap<K, Object[]>(16, 0.75f, true){
+				protected boolean removeEldestEntry(Map.Entry<K, Object[]> eldest){
+					return size() > capacity;
+				}
+			};
+		}
+
+		/**
+		 * @return the cached value, null if it is not cached or too old
+		 */
+		@SuppressWarnings("unchecked")
+		synchronized V get(K key){
+			Object[] entry = entries.get(key);
+			if(entry != null && System.nanoTime() - (Long) entry[1] < ttlNanos){
+				hits++;
+				return (V) entry[0];
+			}
+			if(entry != null){
+				entries.remove(key);
+			}
+			misses++;
+			return null;
+		}
+
+		synchronized void put(K key, V value){
+			entries.put(key, new Object[]{ value, System.nanoTime() });
+		}
+
+		/**
+		 * @return the cached value without counting a hit or a miss, null if
+		 * it is not cached or too old
+		 */
+		@SuppressWarnings("unchecked")
+		synchronized V peek(K key){
+			Object[] entry = entries.get(key);
+			if(entry != null && System.nanoTime() - (Long) entry[1] < ttlNanos){
+				return (V) entry[0];
+			}
+			if(entry != null){
+				entries.remove(key);
+			}
+			return null;
+		}
+
+		/**
+		 * Method to change a cached value but keep the time it was read, so
+		 * it still expires when the row it was read from does.
+		 */
+		synchronized void replace(K key, V value){
+			Object[] entry = entries.get(key);
+			if(entry != null){
+				entry[0] = value;
+			}
+		}
+
+		synchronized void clear(){
+			entries.clear();
+		}
+
+		public synchronized String toString(){
+			long total = hits + misses;
+			return String.format("%s %d hits, %d misses (%.1f%% hit rate), %d cached",
+				name, hits, misses, total == 0 ? 0.0 : hits * 100.0 / total, entries.size());
+		}
+	}//end Region
+
+	private final Region<Integer, String[]> customers;
+	private final Region<Integer, String[]> mechanics;
+	private final Region<String, String[]> cars;
+	private final Region<Integer, List<String>> owned;
+
+	public EntityCache(){
+		this(Integer.getInteger("mechanicshop.cache.size", DEFAULT_CAPACITY),
+			Long.getLong("mechanicshop.cache.ttl", DEFAULT_TTL_SECONDS));
+	}
+
+	/**
+	 * @param capacity the most rows of each kind to keep
+	 * @param ttlSeconds how long a row is trusted before it is read again
+	 */
+	public EntityCache(int capacity, long ttlSeconds){
+		long ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+		this.customers = new Region<Integer, String[]>("customers", capacity, ttlNanos);
+		this.mechanics = new Region<Integer, String[]>("mechanics", capacity, ttlNanos);
+		this.cars = new Region<String, String[]>("cars", capacity, ttlNanos);
+		this.owned = new Region<Integer, List<String>>("owned cars", capacity, ttlNanos);
+	}
+
+	/**
+	 * Method to get a customer row, reading it from the database on a miss.
+	 *
+	 * @param esql a session with a connection, used on a miss
+	 * @param id the customer id
+	 * @return id, fname, lname, phone and address, null if there is no such customer
+	 * @throws java.sql.SQLException when reading the row failed
+	 */
+	public String[] getCustomer(MechanicShop esql, int id) throws SQLException {
+		String[] row = customers.get(id);
+		if(row == null){
+			row = first(esql.executeQueryAndReturnResult(CUSTOMER_SQL, id));
+			if(row != null){
+				customers.put(id, row);
+			}
+		}
+		return row;
+	}
+
+	/**
+	 * Method to get a mechanic row, reading it from the database on a miss.
+	 *
+	 * @return id, fname, lname and experience, null if there is no such mechanic
+	 * @throws java.sql.SQLException when reading the row failed
+	 */
+	public String[] getMechanic(MechanicShop esql, int id) throws SQLException {
+		String[] row = mechanics.get(id);
+		if(row == null){
+			row = first(esql.executeQueryAndReturnResult(MECHANIC_SQL, id));
+			if(row != null){
+				mechanics.put(id, row);
+			}
+		}
+		return row;
+	}
+
+	/**
+	 * Method to get a car row, reading it from the database on a miss.
+	 *
+	 * @return vin, make, model and year, null if there is no such car
+	 * @throws java.sql.SQLException when reading the row failed
+	 */
+	public String[] getCar(MechanicShop esql, String vin) throws SQLException {
+		String[] row = cars.get(vin);
+		if(row == null){
+			row = first(esql.executeQueryAndReturnResult(CAR_SQL, vin));
+			if(row != null){
+				cars.put(vin, row);
+			}
+		}
+		return row;
+	}
+
+	/**
+	 * Method to get the cars a customer owns.  On a miss the cars are read
+	 * with one query, which also caches each car row.
+	 *
+	 * @param esql a session with a connection, used on a miss
+	 * @param customerId the customer id
+	 * @return vin, make, model and year of each car, in the order they were bought
+	 * @throws java.sql.SQLException when reading the rows failed
+	 */
+	public List<String[]> getOwnedCars(MechanicShop esql, int customerId) throws SQLException {
+		List<String> vins = owned.get(customerId);
+		final List<String[]> result = new ArrayList<String[]>();
+		if(vins != null){
+			for(String vin : vins){
+				String[] car = getCar(esql, vin);
+				if(car != null){
+					result.add(car);
+				}
+			}
+			return result;
+		}
+		final List<String> loaded = new ArrayList<String>();
+		esql.executeQueryAndVisit(OWNED_CARS_SQL, new RowVisitor(){
+			public void visit(ResultSet rs) throws SQLException {
+				String[] car = new String[4];
+				for(int i = 0; i < car.length; ++i){
+					car[i] = trim(rs.getString(i + 1));
+				}
+				cars.put(car[0], car);
+				loaded.add(car[0]);
+				result.add(car);
+			}
+		}, customerId);
+		owned.put(customerId, loaded);
+		return result;
+	}
+
+	/**
+	 * Method to cache a customer the shop has just written.
+	 */
+	public void putCustomer(int id, String fname, String lname, String phone, String address){
+		customers.put(id, new String[]{ String.valueOf(id), fname, lname, phone, address });
+		//a new customer owns nothing yet
+		owned.put(id, new ArrayList<String>());
+	}
+
+	/**
+	 * Method to cache a mechanic the shop has just written.
+	 */
+	public void putMechanic(int id, String fname, String lname, int experience){
+		mechanics.put(id, new String[]{ String.valueOf(id), fname, lname, String.valueOf(experience) });
+	}
+
+	/**
+	 * Method to cache a car the shop has just written.
+	 */
+	public void putCar(String vin, String make, String model, int year){
+		cars.put(vin, new String[]{ vin, make, model, String.valueOf(year) });
+	}
+
+	/**
+	 * Method to record that a customer now owns a car.  The owner's list is
+	 * copied so readers holding the old list are not affected.  A list that
+	 * is too old is dropped, not extended, and is read again on the next use.
+	 */
+	public void addOwnedCar(int customerId, String vin){
+		synchronized(owned){
+			List<String> vins = owned.peek(customerId);
+			if(vins != null){
+				List<String> copy = new ArrayList<String>(vins);
+				copy.add(vin);
+				owned.replace(customerId, copy);
+			}
+		}
+	}
+
+	/**
+	 * Method to forget every cached row, e.g. after the tables were reloaded.
+	 */
+	public void clear(){
+		customers.clear();
+		mechanics.clear();
+		cars.clear();
+		owned.clear();
+	}
+
+	public String toString(){
+		return "Entity cache: " + customers + "; " + mechanics + "; " + cars + "; " + owned;
+	}
+
+	private static String[] first(List<List<String>> rows){
+		if(rows.isEmpty()){
+			return null;
+		}
+		List<String> row = rows.get(0);
+		String[] values = new String[row.size()];
+		for(int i = 0; i < values.length; ++i){
+			values[i] = trim(row.get(i));
+		}
+		return values;
+	}
+
+	private static String trim(String value){
+		return value == null ? null : value.trim();
+	}
+}//end EntityCache
@@ -0,0 +1,59 @@
+/*
+ * Key allocator for the MechanicShop insert paths
+ * ===============================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+
+/**
+ * This class hands out primary keys for one table from a Postgres sequence.
+ * The sequences in create.sql are declared with INCREMENT BY BLOCK_SIZE, so a
+ * single nextval reserves the whole block [value, value + BLOCK_SIZE) for
+ * this connection. Keys are then handed out locally and only every
+ * BLOCK_SIZE-th insert pays for a trip to the server. Two desks can never be
+ * given the same key because each one owns a different block.
+ *
+ */
+
+public class KeyAllocator{
+	//must match the INCREMENT BY of the sequences in create.sql
+	public static final int BLOCK_SIZE = 50;
+
+	private final MechanicShop esql;
+	private final String sequence;
+	//next key to hand out and the first key past the reserved block
+	private int next = 0;
+	private int limit = 0;
+
+	public KeyAllocator(MechanicShop esql, String sequence){
+		this.esql = esql;
+		this.sequence = sequence;
+	}
+
+	/**
+	 * Method to get the next unused key for this table.  A new block is
+	 * reserved from the sequence when the current one is used up.
+	 *
+	 * @return a key no other caller has been or will be given
+	 * @throws java.sql.SQLException when the sequence could not be advanced
+	 */
+	public synchronized int nextKey() throws SQLException {
+		if(next >= limit){
+			//nextval returns the start of the block it reserved for us, one round trip
+			next = (int) esql.executeQueryAndReturnColumns("SELECT nextval(CAST(? AS regclass))", sequence).getLong(0, 0);
+			limit = next + BLOCK_SIZE;
+		}
+		return next++;
+	}
+
+	/**
+	 * @return the name of the sequence backing this allocator
+	 */
+	public String getSequence(){
+		return sequence;
+	}
+}//end KeyAllocator
@@ -0,0 +1,111 @@
+/*
+ * In-memory key existence index for MechanicShop
+ * ==============================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * This class remembers which customer ids, mechanic ids, request ids and
+ * VINs exist, so the "keep asking until valid" loops can reject a typo
+ * without a round trip to the server.  The integer keys are dense, so they
+ * are kept in bitsets; VINs are kept in a hash set.  The index is loaded once
+ * at startup and the insert paths add their new keys to it.
+ *
+ * A "yes" only means the key may exist and is still confirmed against the
+ * database.  One index is shared by all sessions of a server, so it sees
+ * every desk's inserts.  Keys written by other programs are only known after
+ * load is called again, except that integer keys above the largest one known
+ * are always passed on to the database.
+ *
+ */
+
+public class KeyIndex{
+	private final BitSet customers = new BitSet();
+	private final BitSet mechanics = new BitSet();
+	private final BitSet requests = new BitSet();
+	private final Set<String> cars = new HashSet<String>();
+
+	/**
+	 * Method to (re)load every key from the database.
+	 *
+	 * @param esql a session with a connection
+	 * @throws java.sql.SQLException when reading the keys failed
+	 */
+	public synchronized void load(MechanicShop esql) throws SQLException {
+		customers.clear();
+		mechanics.clear();
+		requests.clear();
+		cars.clear();
+		esql.executeQueryAndVisit("SELECT id FROM Customer", new RowVisitor(){
+			public void visit(ResultSet rs) throws SQLException {
+				customers.set(rs.getInt(1));
+			}
+		});
+		esql.executeQueryAndVisit("SELECT id FROM Mechanic", new RowVisitor(){
+			public void visit(ResultSet rs) throws SQLException {
+				mechanics.set(rs.getInt(1));
+			}
+		});
+		esql.executeQueryAndVisit("SELECT rid FROM Service_Request", new RowVisitor(){
+			public void visit(ResultSet rs) throws SQLException {
+				requests.set(rs.getInt(1));
+			}
+		});
+		esql.executeQueryAndVisit("SELECT vin FROM Car", new RowVisitor(){
+			public void visit(ResultSet rs) throws SQLException {
+				cars.add(rs.getString(1));
+			}
+		});
+	}
+
+	public synchronized boolean mayHaveCustomer(int id){
+		return mayHave(customers, id);
+	}
+
+	public synchronized boolean mayHaveMechanic(int id){
+		return mayHave(mechanics, id);
+	}
+
+	public synchronized boolean mayHaveRequest(int rid){
+		return mayHave(requests, rid);
+	}
+
+	public synchronized boolean mayHaveCar(String vin){
+		return vin != null && cars.contains(vin);
+	}
+
+	public synchronized void addCustomer(int id){
+		customers.set(id);
+	}
+
+	public synchronized void addMechanic(int id){
+		mechanics.set(id);
+	}
+
+	public synchronized void addRequest(int rid){
+		requests.set(rid);
+	}
+
+	public synchronized void addCar(String vin){
+		cars.add(vin);
+	}
+
+	public synchronized String toString(){
+		return String.format("Key index: %d customers, %d mechanics, %d requests, %d cars",
+			customers.cardinality(), mechanics.cardinality(), requests.cardinality(), cars.size());
+	}
+
+	private static boolean mayHave(BitSet keys, int key){
+		//keys are never negative; anything above the largest known key may be new
+		return key >= 0 && (key >= keys.length() || keys.get(key));
+	}
+}//end KeyIndex
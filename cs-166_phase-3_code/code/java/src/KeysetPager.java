@@ -0,0 +1,352 @@
+/*
+ * Keyset pagination for MechanicShop
+ * ==================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This class shows a table or a report a page at a time.  Pages are found by
+ * their sort key instead of with OFFSET: the next page is the first rows whose
+ * key comes after the last row shown, e.g.
+ *
+ *   SELECT * FROM (...) AS page WHERE (total_bill, id) > (?, ?) ORDER BY total_bill, id LIMIT 21
+ *
+ * so with an index on the key every page costs the same, however far into
+ * the table it is.  The keys must be unique together and all sorted the same
+ * way.
+ *
+ * A grouped query, e.g. a report over a date range, can not be filtered from
+ * outside before it is grouped.  Put KEYSET where its own WHERE or HAVING
+ * would take the key predicate and give the key expressions, e.g.
+ *
+ *   ... GROUP BY C.id HAVING {keyset}    with keys SUM(CR.bill), C.id
+ *
+ * KEYSET must come after every placeholder of the query.  A page of a report
+ * keyed by an aggregate still groups all the report's rows, only the rows
+ * before the page are not sorted, so its pages cost the same as the first.
+ *
+ * The query must not have an ORDER BY.  Its first shownColumns columns are
+ * printed; the key columns may come after them, so a report can be paged by
+ * an id it does not show.
+ *
+ */
+
+public class KeysetPager{
+	public static final int DEFAULT_PAGE_SIZE = Integer.getInteger("mechanicshop.pageSize", 20);
+	//where a query takes the key predicate, replaced by TRUE on the first page
+	public static final String KEYSET = "{keyset}";
+
+	private final MechanicShop esql;
+	private final String sql;
+	private final Object[] params;
+	private final int shownColumns;
+	private final String[] keys;
+	private final String[] keyExpressions;
+	private final boolean descending;
+	private final int pageSize;
+
+	//found from the first page: column names, key positions and key types
+	private String[] header;
+	private int[] keyColumns;
+	private String[] keyTypes;
+	//key values of the first and last row shown
+	private String[] firstKey;
+	private String[] lastKey;
+	private boolean hasNext = false;
+
+	/**
+	 * @param esql the session whose terminal shows the pages
+	 * @param sql the rows to page through, without ORDER BY
+	 * @param shownColumns how many of the first columns are printed
+	 * @param keys the names of the key columns, most significant first
+	 * @param descending true to show the largest keys first
+	 * @param pageSize rows per page
+	 * @param params the values bound to the placeholders of sql
+	 */
+	public KeysetPager(MechanicShop esql, String sql, int shownColumns, String[] keys, boolean descending, int pageSize, Object... params){
+		this(esql, sql, shownColumns, keys, keys, descending, pageSize, params);
+	}
+
+	/**
+	 * @param sql the rows to page through, without ORDER BY, with KEYSET where the key predicate goes
+	 * @param keyExpressions the key columns as the predicate at KEYSET has to name them
+	 */
+	public KeysetPager(MechanicShop esql, String sql, int shownColumns, String[] keys, String[] keyExpressions, boolean descending, int pageSize, Object... params){
+		this.esql = esql;
+		this.sql = sql;
+		this.params = params;
+		this.shownColumns = shownColumns;
+		this.keys = keys;
+		this.keyExpressions = keyExpressions;
+		this.descending = descending;
+		this.pageSize = pageSize;
+	}
+
+	/**
+	 * Method to get a pager over a whole table, in primary key order.
+	 *
+	 * @param table a table name as in create.sql, any case
+	 * @return the pager, null if there is no such table
+	 */
+	public static KeysetPager forTable(MechanicShop esql, String table){
+		String[] keys;
+		switch(table.toLowerCase()){
+			case "customer": case "mechanic": keys = new String[]{ "id" }; break;
+			case "car": keys = new String[]{ "vin" }; break;
+			case "owns": keys = new String[]{ "ownership_id" }; break;
+			case "service_request": keys = new String[]{ "rid", "date" }; break;
+			case "closed_request": keys = new String[]{ "wid", "date" }; break;
+			case "customer_bill": keys = new String[]{ "customer_id" }; break;
+			case "car_service_count": keys = new String[]{ "car_vin" }; break;
+			case "open_request": keys = new String[]{ "rid" }; break;
+			case "revenue_cube": keys = new String[]{ "month", "mid", "make" }; break;
+			default: return null;
+		}
+		//the name is one of the cases above, so it is safe to put in the SQL
+		return new KeysetPager(esql, "SELECT * FROM " + table, Integer.MAX_VALUE, keys, false, DEFAULT_PAGE_SIZE);
+	}
+
+	/**
+	 * Method to show the first page, then the pages the user asks for until
+	 * they quit.  Without a terminal to ask only the first page is shown.
+	 *
+	 * @return the number of rows on the first page
+	 * @throws java.sql.SQLException when a page could not be read
+	 */
+	public int browse() throws SQLException {
+		List<String[]> page = first();
+		int shown = page.size();
+		while(!page.isEmpty()){
+			esql.printResult(header, page);
+			if(esql.in == null){
+				break;
+			}
+			esql.out.println((hasNext ? "[n]ext, " : "(last page) ") + "[p]revious, [j]ump <" + keys[0] + ">, [q]uit:");
+			String line;
+			try{
+				line = esql.in.readLine();
+			}catch(IOException e){
+				line = null;
+			}
+			if(line == null || line.trim().equalsIgnoreCase("q") || line.trim().isEmpty()){
+				break;
+			}
+			line = line.trim();
+			if(line.equalsIgnoreCase("n")){
+				if(hasNext){
+					page = next();
+				}
+			}else if(line.equalsIgnoreCase("p")){
+				page = previous();
+			}else if(line.length() > 1 && (line.charAt(0) == 'j' || line.charAt(0) == 'J') && line.charAt(1) == ' '){
+				List<String[]> found = jump(line.substring(2).trim());
+				if(found.isEmpty()){
+					esql.out.println("Nothing from there on.");
+				}else{
+					page = found;
+				}
+			}else{
+				esql.out.println("Your input is invalid!");
+			}
+		}
+		return shown;
+	}
+
+	/**
+	 * @return the first page
+	 * @throws java.sql.SQLException when the page could not be read
+	 */
+	public List<String[]> first() throws SQLException {
+		return fetch(null, false, null);
+	}
+
+	/**
+	 * @return the page after the last one read, empty after the last page
+	 * @throws java.sql.SQLException when the page could not be read
+	 */
+	public List<String[]> next() throws SQLException {
+		if(lastKey == null){
+			return first();
+		}
+		return fetch(null, false, lastKey);
+	}
+
+	/**
+	 * @return the page before the last one read; the first page if there are
+	 * not enough rows before it to fill one
+	 * @throws java.sql.SQLException when the page could not be read
+	 */
+	public List<String[]> previous() throws SQLException {
+		if(firstKey == null){
+			return first();
+		}
+		List<String[]> page = fetch(null, true, firstKey);
+		return page.size() < pageSize ? first() : page;
+	}
+
+	/**
+	 * @param key a value of the first key column
+	 * @return the page starting at the first row with that key or the next
+	 * one after it, empty if there is none
+	 * @throws java.sql.SQLException when the page could not be read
+	 */
+	public List<String[]> jump(String key) throws SQLException {
+		if(keyTypes == null){
+			first();
+		}
+		return fetch(key, false, null);
+	}
+
+	/**
+	 * Method to read one page.
+	 *
+	 * @param seek a first key value to start at, or null
+	 * @param backwards true to read the rows before from, in reverse
+	 * @param from the key values to start after (or before), null for the first page
+	 */
+	private List<String[]> fetch(String seek, boolean backwards, String[] from) throws SQLException {
+		boolean reverse = backwards != descending;
+		boolean seeking = seek != null && keyTypes != null;
+		List<Object> values = new ArrayList<Object>();
+		Collections.addAll(values, params);
+		if(seeking){
+			values.add(seek);
+		}else if(from != null){
+			Collections.addAll(values, (Object[]) from);
+		}
+		//one row more tells if there is a page after this one
+		values.add(pageSize + 1);
+		String query = pageQuery(sql, keys, keyExpressions, keyTypes, reverse, seeking, !seeking && from != null);
+
+		final List<String[]> rows = new ArrayList<String[]>();
+		final List<String[]> rowKeys = new ArrayList<String[]>();
+		esql.executeQueryAndVisit(query, new RowVisitor(){
+			public void visit(ResultSet rs) throws SQLException {
+				if(keyColumns == null){
+					describe(rs.getMetaData());
+				}
+				String[] row = new String[header.length];
+				for(int i = 0; i < row.length; ++i){
+					String value = rs.getString(i + 1);
+					row[i] = value == null ? "null" : value.trim();
+				}
+				String[] key = new String[keyColumns.length];
+				for(int i = 0; i < key.length; ++i){
+					key[i] = rs.getString(keyColumns[i]);
+				}
+				rows.add(row);
+				rowKeys.add(key);
+			}
+		}, values.toArray());
+
+		boolean more = rows.size() > pageSize;
+		if(more){
+			rows.remove(pageSize);
+			rowKeys.remove(pageSize);
+		}
+		if(backwards){
+			Collections.reverse(rows);
+			Collections.reverse(rowKeys);
+			//the page read before came after these rows
+			hasNext = true;
+		}else{
+			hasNext = more;
+		}
+		if(!rows.isEmpty()){
+			firstKey = rowKeys.get(0);
+			lastKey = rowKeys.get(rowKeys.size() - 1);
+		}
+		return rows;
+	}
+
+	/**
+	 * Method to write the query for one page.  Its parameters are those of
+	 * sql, then the seek value or the key values, then the row limit.
+	 *
+	 * @param sql the rows to page through, without ORDER BY, KEYSET where the key predicate goes if it has one
+	 * @param keys the names of the key columns
+	 * @param keyExpressions the key columns as the predicate at KEYSET names them
+	 * @param keyTypes the SQL types of the key columns, the values are cast to them
+	 * @param reverse true to read from the largest key down
+	 * @param seek true to start at a value of the first key
+	 * @param after true to start after the given key values
+	 * @return the SQL text
+	 */
+	static String pageQuery(String sql, String[] keys, String[] keyExpressions, String[] keyTypes, boolean reverse, boolean seek, boolean after){
+		StringBuilder query = new StringBuilder("SELECT * FROM (");
+		if(sql.contains(KEYSET)){
+			String predicate = predicate(keyExpressions, keyTypes, reverse, seek, after);
+			query.append(sql.replace(KEYSET, predicate == null ? "TRUE" : predicate)).append(") AS page");
+		}else{
+			String predicate = predicate(keys, keyTypes, reverse, seek, after);
+			query.append(sql).append(") AS page");
+			if(predicate != null){
+				query.append(" WHERE ").append(predicate);
+			}
+		}
+		query.append(" ORDER BY ");
+		for(int i = 0; i < keys.length; ++i){
+			query.append(i > 0 ? ", " : "").append(keys[i]).append(reverse ? " DESC" : "");
+		}
+		return query.append(" LIMIT ?").toString();
+	}
+
+	/**
+	 * @return the condition on the keys where a page starts, null for the first page
+	 */
+	private static String predicate(String[] keys, String[] keyTypes, boolean reverse, boolean seek, boolean after){
+		StringBuilder predicate = new StringBuilder();
+		if(seek){
+			predicate.append(keys[0]).append(reverse ? " <= " : " >= ")
+				.append("CAST(? AS ").append(keyTypes[0]).append(')');
+		}else if(after){
+			predicate.append('(');
+			for(int i = 0; i < keys.length; ++i){
+				predicate.append(i > 0 ? ", " : "").append(keys[i]);
+			}
+			predicate.append(reverse ? ") < (" : ") > (");
+			for(int i = 0; i < keys.length; ++i){
+				predicate.append(i > 0 ? ", " : "").append("CAST(? AS ").append(keyTypes[i]).append(')');
+			}
+			predicate.append(')');
+		}else{
+			return null;
+		}
+		return predicate.toString();
+	}
+
+	/**
+	 * Method to find the printed columns and the key columns of the result.
+	 */
+	private void describe(ResultSetMetaData rsmd) throws SQLException {
+		int numCol = Math.min(shownColumns, rsmd.getColumnCount());
+		header = new String[numCol];
+		for(int i = 0; i < numCol; ++i){
+			header[i] = rsmd.getColumnLabel(i + 1);
+		}
+		keyColumns = new int[keys.length];
+		keyTypes = new String[keys.length];
+		for(int k = 0; k < keys.length; ++k){
+			for(int i = 1; i <= rsmd.getColumnCount(); ++i){
+				if(rsmd.getColumnLabel(i).equalsIgnoreCase(keys[k])){
+					keyColumns[k] = i;
+					keyTypes[k] = rsmd.getColumnTypeName(i);
+				}
+			}
+			if(keyColumns[k] == 0){
+				throw new IllegalArgumentException("No key column " + keys[k] + " in " + sql);
+			}
+		}
+	}
+}//end KeysetPager
@@ -0,0 +1,100 @@
+/*
+ * Latency histogram for MechanicShop
+ * ==================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class counts latencies in microseconds into log-linear buckets, the
+ * same layout HdrHistogram uses: every power of two is split into 32 equal
+ * buckets, so any percentile is reported within about 3% of the real value
+ * with a fixed 9KB of counters, from 1 microsecond up to days.  Recording is
+ * lock free and may be done from many threads.
+ *
+ */
+
+public class LatencyHistogram{
+	private static final int SUB_BITS = 5;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	//values below 2 * SUB_COUNT get a bucket each, then 32 buckets per power of two
+	private static final int BUCKETS = 2 * SUB_COUNT + (40 - SUB_BITS) * SUB_COUNT;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Method to count one latency.
+	 *
+	 * @param micros the latency in microseconds, negative values count as 0
+	 */
+	public void record(long micros){
+		long value = Math.max(micros, 0);
+		counts.incrementAndGet(Math.min(bucketOf(value), BUCKETS - 1));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long seen = max.get();
+		while(value > seen && !max.compareAndSet(seen, value)){
+			seen = max.get();
+		}
+	}
+
+	public long getCount(){
+		return count.get();
+	}
+
+	public long getMax(){
+		return max.get();
+	}
+
+	public double getMean(){
+		long n = count.get();
+		return n == 0 ? 0 : (double) sum.get() / n;
+	}
+
+	/**
+	 * @param percentile between 0 and 100
+	 * @return the upper bound of the bucket holding that percentile, in microseconds
+	 */
+	public long getPercentile(double percentile){
+		long n = count.get();
+		if(n == 0){
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+		long seen = 0;
+		for(int i = 0; i < BUCKETS; ++i){
+			seen += counts.get(i);
+			if(seen >= rank){
+				//the last bucket also holds everything too large for the others
+				return i == BUCKETS - 1 ? max.get() : Math.min(highestValueIn(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	private static int bucketOf(long value){
+		if(value < 2 * SUB_COUNT){
+			return (int) value;
+		}
+		//keeps the top SUB_BITS + 1 bits of the value
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		return 2 * SUB_COUNT + (shift - 1) * SUB_COUNT + (int) ((value >> shift) - SUB_COUNT);
+	}
+
+	private static long highestValueIn(int bucket){
+		if(bucket < 2 * SUB_COUNT){
+			return bucket;
+		}
+		int shift = (bucket - 2 * SUB_COUNT) / SUB_COUNT + 1;
+		long sub = (bucket - 2 * SUB_COUNT) % SUB_COUNT + SUB_COUNT;
+		return ((sub + 1) << shift) - 1;
+	}
+}//end LatencyHistogram
@@ -13,16 +13,25 @@
 
 import java.sql.DriverManager;
 import java.sql.Connection;
-import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
 import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.FilterOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.postgresql.PGConnection;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -33,84 +42,321 @@ import java.util.ArrayList;
 public class MechanicShop{
 	//reference to physical database connection
 	private Connection _connection = null;
-	static BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+	//prepared statements of this connection, reused across calls
+	private StatementCache _statements = null;
+	//pool and indexes shared by all sessions of a server
+	private final ShopContext _context;
+	//connection borrowed from the pool in server mode, null otherwise
+	private ConnectionPool.PooledConnection _pooled = null;
+	//key allocators for the insert paths, backed by the sequences in create.sql
+	final KeyAllocator customerKeys = new KeyAllocator(this, "customer_id_seq");
+	final KeyAllocator mechanicKeys = new KeyAllocator(this, "mechanic_id_seq");
+	final KeyAllocator ownsKeys = new KeyAllocator(this, "owns_ownership_id_seq");
+	final KeyAllocator requestKeys = new KeyAllocator(this, "service_request_rid_seq");
+	final KeyAllocator closedKeys = new KeyAllocator(this, "closed_request_wid_seq");
+	//statement last sent by this session, for cancel
+	private volatile PreparedStatement _running = null;
+	//connection details of a console session, for the report dashboard's own pool
+	private final String _url;
+	private final String _user;
+	private final String _passwd;
+	//sessions of the report dashboard in console mode, opened on first use
+	private ShopContext _reportContext = null;
+	//operation of this session being recorded by the metrics, null between operations
+	private ShopMetrics.Trace _trace = null;
+	//terminal of this session
+	final BufferedReader in;
+	final PrintStream out;
+	//rows fetched per round trip and rows shown when printing a result
+	private int fetchSize = Integer.getInteger("mechanicshop.fetchSize", 500);
+	private int maxPrintRows = Integer.getInteger("mechanicshop.maxPrintRows", 1000);
 	
 	public MechanicShop(String dbname, String dbport, String user, String passwd) throws SQLException {
+		this.in = new BufferedReader(new InputStreamReader(System.in));
+		this.out = System.out;
+		this._url = connectionUrl(dbname, dbport);
+		this._user = user;
+		this._passwd = passwd;
 		System.out.print("Connecting to database...");
 		try{
 			// constructs the connection URL
-			String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
+			String url = connectionUrl(dbname, dbport);
 			System.out.println ("Connection URL: " + url + "\n");
 			
 			// obtain a physical connection
 	        this._connection = DriverManager.getConnection(url, user, passwd);
+	        this._statements = new StatementCache(this._connection, StatementCache.DEFAULT_CAPACITY);
 	        System.out.println("Done");
 		}catch(Exception e){
 			System.err.println("Error - Unable to Connect to Database: " + e.getMessage());
 	        System.out.println("Make sure you started postgres on this machine");
 	        System.exit(-1);
 		}
+		this._context = new ShopContext(null);
+		this._context.load(this);
+	}
+
+	/**
+	 * Constructor for a server mode session.  The session has its own
+	 * terminal and borrows a connection from the shared pool only while it
+	 * talks to the database: a connection is borrowed by the first statement
+	 * and given back when the session waits for its user to type.
+	 * 
+	 * @param context the pool and indexes shared by all sessions
+	 * @param in the desk's input
+	 * @param out the desk's output
+	 */
+	public MechanicShop(ShopContext context, BufferedReader in, PrintStream out) {
+		this.in = context.pool != null && in != null ? new DeskReader (in) : in;
+		this.out = out;
+		this._context = context;
+		this._url = null;
+		this._user = null;
+		this._passwd = null;
+	}
+
+	/**
+	 * @return the JDBC URL of a database on this machine
+	 */
+	public static String connectionUrl(String dbname, String dbport) {
+		//lets the driver send batched INSERTs as multi-row statements
+		return "jdbc:postgresql://localhost:" + dbport + "/" + dbname + "?reWriteBatchedInserts=true";
+	}
+
+	/**
+	 * Method to borrow a connection from the pool for the next operation.
+	 * Does nothing for a session that owns its connection.
+	 * 
+	 * @throws java.sql.SQLException when no connection could be borrowed
+	 */
+	public void borrowConnection() throws SQLException {
+		if (this._context.pool != null && this._pooled == null){
+			this._pooled = this._context.pool.borrow ();
+			this._connection = this._pooled.connection;
+			this._statements = this._pooled.statements;
+		}//end if
+	}
+
+	/**
+	 * Method to borrow a connection for a statement if the session has none.
+	 * When every connection stays busy past the borrow timeout the user is
+	 * asked to try again, instead of the operation failing.
+	 * 
+	 * @throws java.sql.SQLException when no connection could be borrowed for another reason
+	 */
+	private void connect() throws SQLException {
+		while (this._context.pool != null && this._pooled == null){
+			try{
+				borrowConnection ();
+			}catch (SQLTimeoutException e){
+				this.out.println ("All database connections are busy, press Enter to try again.");
+				String line;
+				try{
+					line = this.in.readLine ();
+				}catch (IOException e2){
+					line = null;
+				}//end try
+				if (line == null)
+					throw new IllegalStateException("Input closed");
+			}//end try
+		}
+	}
+
+	/**
+	 * Method to give the borrowed connection back unless a transaction is
+	 * open on it.  Called before the session waits for input.
+	 */
+	void releaseIdleConnection() {
+		try{
+			if (this._pooled != null && this._connection.getAutoCommit ())
+				returnConnection ();
+		}catch (SQLException e){
+			// kept, a broken connection is dropped when it is given back later.
+		}//end try
+	}
+
+	/**
+	 * The terminal of a server session.  Reading a line gives the borrowed
+	 * connection back first, so a desk never holds one while its user types.
+	 */
+	private class DeskReader extends BufferedReader {
+		DeskReader (BufferedReader in) {
+			super (in);
+		}
+
+		public String readLine () throws IOException {
+			releaseIdleConnection ();
+			return super.readLine ();
+		}
+	}//end DeskReader
+
+	/**
+	 * Method to give the borrowed connection back to the pool.  Does nothing
+	 * for a session that owns its connection.
+	 */
+	public void returnConnection() {
+		if (this._pooled != null){
+			this._context.pool.release (this._pooled);
+			this._pooled = null;
+			this._connection = null;
+			this._statements = null;
+		}//end if
 	}
 	
 	/**
 	 * Method to execute an update SQL statement.  Update SQL instructions
 	 * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
 	 * 
-	 * @param sql the input SQL string
+	 * @param sql the input SQL string, with a ? placeholder for each parameter
+	 * @param params the values bound to the placeholders, in order
+	 * @return the number of rows changed
 	 * @throws java.sql.SQLException when update failed
 	 * */
-	public void executeUpdate (String sql) throws SQLException { 
-		// creates a statement object
-		Statement stmt = this._connection.createStatement ();
+	public int executeUpdate (String sql, Object... params) throws SQLException { 
+		long start = System.nanoTime ();
+		// gets a prepared statement object and binds the parameters
+		PreparedStatement stmt = prepare (sql, params);
 
 		// issues the update instruction
-		stmt.executeUpdate (sql);
-
-		// close the instruction
-	    stmt.close ();
+		int rowCount = stmt.executeUpdate ();
+		record (sql, start, rowCount, 0, 1);
+		return rowCount;
 	}//end executeUpdate
 
+	/**
+	 * Method to queue an update SQL statement with one set of parameters.
+	 * Nothing is sent until executeBatch is called for the same SQL.
+	 * 
+	 * @param sql the input SQL string, with a ? placeholder for each parameter
+	 * @param params the values bound to the placeholders, in order
+	 * @throws java.sql.SQLException when the parameters could not be bound
+	 * */
+	public void addBatch (String sql, Object... params) throws SQLException {
+		prepare (sql, params).addBatch ();
+	}//end addBatch
+
+	/**
+	 * Method to send every update queued by addBatch for this SQL in as few
+	 * round trips as the driver can.  The queue is emptied either way.
+	 * 
+	 * @param sql the input SQL string the updates were queued for
+	 * @return the number of rows changed by each queued update
+	 * @throws java.sql.SQLException when an update failed
+	 * */
+	public int[] executeBatch (String sql) throws SQLException {
+		connect ();
+		long start = System.nanoTime ();
+		PreparedStatement stmt = this._statements.prepare (sql);
+		try{
+			int[] counts = stmt.executeBatch ();
+			//rewritten batches only report success, count those as one row
+			long rowCount = 0;
+			for (int count : counts)
+				rowCount += count >= 0 ? count : 1;
+			record (sql, start, rowCount, 0, 1);
+			return counts;
+		}finally{
+			stmt.clearBatch ();
+		}
+	}//end executeBatch
+
 	/**
 	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
 	 * method issues the query to the DBMS and outputs the results to
-	 * standard out.
+	 * the session's terminal as aligned columns.  Rows are fetched through a
+	 * cursor, fetchSize at a time, so memory stays flat for large tables,
+	 * and at most maxPrintRows rows are printed.
 	 * 
-	 * @param query the input query string
-	 * @return the number of rows returned
+	 * @param query the input query string, with a ? placeholder for each parameter
+	 * @param params the values bound to the placeholders, in order
+	 * @return the number of rows printed
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public int executeQueryAndPrintResult (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
+	public int executeQueryAndPrintResult (String query, Object... params) throws SQLException {
+		long start = System.nanoTime ();
+		//gets a prepared statement object and binds the parameters
+		PreparedStatement stmt = prepare (query, params);
 
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
+		//the driver only uses a cursor inside a transaction
+		boolean autoCommit = this._connection.getAutoCommit ();
+		if (autoCommit)
+			this._connection.setAutoCommit (false);
+		try{
+			stmt.setFetchSize (this.fetchSize);
+			//one row past the limit tells the printer there is more
+			if (this.maxPrintRows > 0)
+				stmt.setMaxRows (this.maxPrintRows + 1);
 
-		/*
-		 *  obtains the metadata object for the returned result set.  The metadata
-		 *  contains row and column info.
-		 */
-		ResultSetMetaData rsmd = rs.getMetaData ();
-		int numCol = rsmd.getColumnCount ();
-		int rowCount = 0;
-		
-		//iterates through the result set and output them to standard out.
-		boolean outputHeader = true;
-		while (rs.next()){
-			if(outputHeader){
-				for(int i = 1; i <= numCol; i++){
-					System.out.print(rsmd.getColumnName(i) + "\t");
-			    }
-			    System.out.println();
-			    outputHeader = false;
-			}
-			for (int i=1; i<=numCol; ++i)
-				System.out.print (rs.getString (i) + "\t");
-			System.out.println ();
-			++rowCount;
-		}//end while
-		stmt.close ();
-		return rowCount;
+			//issues the query instruction and streams the rows out
+			ResultSet rs = stmt.executeQuery ();
+			ResultPrinter printer = new ResultPrinter (this.out, this.maxPrintRows);
+			int rowCount = printer.print (rs, this.fetchSize);
+			rs.close ();
+			if (autoCommit)
+				this._connection.commit ();
+			record (query, start, rowCount, printer.getByteCount (), cursorRoundTrips (rowCount, autoCommit));
+			return rowCount;
+		}finally{
+			//the statement is cached and shared with the other helpers
+			stmt.setFetchSize (0);
+			stmt.setMaxRows (0);
+			if (autoCommit){
+				this._connection.rollback ();
+				this._connection.setAutoCommit (true);
+			}//end if
+		}
+	}
+
+	/**
+	 * Method to print rows that did not come from a query, e.g. from the
+	 * entity cache, the same way executeQueryAndPrintResult does.
+	 *
+	 * @param header the column names
+	 * @param rows the rows, one value per column
+	 * @return the number of rows printed
+	 */
+	public int printResult (String[] header, List<String[]> rows) {
+		return new ResultPrinter (this.out, this.maxPrintRows).print (header, rows);
+	}
+
+	/**
+	 * Method to print a result already read into columns, e.g. the row
+	 * returned by an insert, the same way executeQueryAndPrintResult does.
+	 *
+	 * @param result the rows and their column names
+	 * @return the number of rows printed
+	 */
+	public int printResult (ColumnarResult result) {
+		String[] header = new String[result.getColumnCount ()];
+		for (int i = 0; i < header.length; ++i)
+			header[i] = result.getColumnName (i);
+		List<String[]> rows = new ArrayList<String[]>();
+		for (int r = 0; r < result.getRowCount (); ++r){
+			String[] row = new String[header.length];
+			for (int i = 0; i < header.length; ++i)
+				row[i] = result.isNull (r, i) ? "null" : result.getString (r, i).trim ();
+			rows.add (row);
+		}//end for
+		return printResult (header, rows);
+	}
+
+	/**
+	 * Method to set how many rows executeQueryAndPrintResult fetches from
+	 * the server at a time.
+	 * 
+	 * @param fetchSize rows per fetch, 0 to let the driver read everything at once
+	 */
+	public void setFetchSize (int fetchSize) {
+		this.fetchSize = fetchSize;
+	}
+
+	/**
+	 * Method to cap the rows executeQueryAndPrintResult prints.
+	 * 
+	 * @param maxPrintRows the most rows to print, 0 for no limit
+	 */
+	public void setMaxPrintRows (int maxPrintRows) {
+		this.maxPrintRows = maxPrintRows;
 	}
 	
 	/**
@@ -118,16 +364,18 @@ public class MechanicShop{
 	 * method issues the query to the DBMS and returns the results as
 	 * a list of records. Each record in turn is a list of attribute values
 	 * 
-	 * @param query the input query string
+	 * @param query the input query string, with a ? placeholder for each parameter
+	 * @param params the values bound to the placeholders, in order
 	 * @return the query result as a list of records
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException { 
-		//creates a statement object 
-		Statement stmt = this._connection.createStatement (); 
+	public List<List<String>> executeQueryAndReturnResult (String query, Object... params) throws SQLException { 
+		long start = System.nanoTime ();
+		//gets a prepared statement object and binds the parameters
+		PreparedStatement stmt = prepare (query, params); 
 		
 		//issues the query instruction 
-		ResultSet rs = stmt.executeQuery (query); 
+		ResultSet rs = stmt.executeQuery (); 
 	 
 		/*
 		 * obtains the metadata object for the returned result set.  The metadata 
@@ -135,35 +383,107 @@ public class MechanicShop{
 		*/ 
 		ResultSetMetaData rsmd = rs.getMetaData (); 
 		int numCol = rsmd.getColumnCount (); 
-		int rowCount = 0; 
 	 
 		//iterates through the result set and saves the data returned by the query. 
-		boolean outputHeader = false;
 		List<List<String>> result  = new ArrayList<List<String>>(); 
+		long bytes = 0;
 		while (rs.next()){
 			List<String> record = new ArrayList<String>(); 
-			for (int i=1; i<=numCol; ++i) 
-				record.add(rs.getString (i)); 
+			for (int i=1; i<=numCol; ++i){
+				String value = rs.getString (i);
+				bytes += value == null ? 0 : value.length ();
+				record.add(value); 
+			}//end for
 			result.add(record); 
 		}//end while 
-		stmt.close (); 
+		rs.close (); 
+		record (query, start, result.size (), bytes, 1);
 		return result; 
 	}//end executeQueryAndReturnResult
+
+	/**
+	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
+	 * method issues the query to the DBMS and calls the visitor once per
+	 * row.  Rows are fetched through a cursor, fetchSize at a time, and no
+	 * per-cell Strings are created, so large results can be aggregated in
+	 * constant memory.
+	 * 
+	 * @param query the input query string, with a ? placeholder for each parameter
+	 * @param visitor called for every row, in order
+	 * @param params the values bound to the placeholders, in order
+	 * @return the number of rows visited
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeQueryAndVisit (String query, RowVisitor visitor, Object... params) throws SQLException {
+		long start = System.nanoTime ();
+		//gets a prepared statement object and binds the parameters
+		PreparedStatement stmt = prepare (query, params);
+
+		//the driver only uses a cursor inside a transaction
+		boolean autoCommit = this._connection.getAutoCommit ();
+		if (autoCommit)
+			this._connection.setAutoCommit (false);
+		try{
+			stmt.setFetchSize (this.fetchSize);
+			ResultSet rs = stmt.executeQuery ();
+			int rowCount = 0;
+			while (rs.next()){
+				visitor.visit (rs);
+				++rowCount;
+			}//end while
+			rs.close ();
+			if (autoCommit)
+				this._connection.commit ();
+			record (query, start, rowCount, 0, cursorRoundTrips (rowCount, autoCommit));
+			return rowCount;
+		}finally{
+			stmt.setFetchSize (0);
+			if (autoCommit){
+				this._connection.rollback ();
+				this._connection.setAutoCommit (true);
+			}//end if
+		}
+	}//end executeQueryAndVisit
+
+	/**
+	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
+	 * method issues the query to the DBMS and returns the results column by
+	 * column, with integer columns held in primitive arrays.
+	 * 
+	 * @param query the input query string, with a ? placeholder for each parameter
+	 * @param params the values bound to the placeholders, in order
+	 * @return the query result as columns
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public ColumnarResult executeQueryAndReturnColumns (String query, Object... params) throws SQLException {
+		long start = System.nanoTime ();
+		//gets a prepared statement object and binds the parameters
+		PreparedStatement stmt = prepare (query, params);
+
+		//issues the query instruction and reads it into columns
+		ResultSet rs = stmt.executeQuery ();
+		ColumnarResult result = new ColumnarResult (rs);
+		rs.close ();
+		record (query, start, result.getRowCount (), result.getByteCount (), 1);
+		return result;
+	}//end executeQueryAndReturnColumns
 	
 	/**
 	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
 	 * method issues the query to the DBMS and returns the number of results
 	 * 
-	 * @param query the input query string
+	 * @param query the input query string, with a ? placeholder for each parameter
+	 * @param params the values bound to the placeholders, in order
 	 * @return the number of rows returned
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public int executeQuery (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
+	public int executeQuery (String query, Object... params) throws SQLException {
+		long start = System.nanoTime ();
+		//gets a prepared statement object and binds the parameters
+		PreparedStatement stmt = prepare (query, params);
 
 		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
+		ResultSet rs = stmt.executeQuery ();
 
 		int rowCount = 0;
 
@@ -171,33 +491,236 @@ public class MechanicShop{
 		while(rs.next()){
 			rowCount++;
 		}//end while
-		stmt.close ();
+		rs.close ();
+		record (query, start, rowCount, 0, 1);
 		return rowCount;
 	}
 	
 	/**
-	 * Method to fetch the last value from sequence. This
-	 * method issues the query to the DBMS and returns the current 
-	 * value of sequence used for autogenerated keys
+	 * Method to run a COPY ... TO STDOUT statement and stream what the
+	 * server sends straight to the output, without holding any rows.
 	 * 
-	 * @param sequence name of the DB sequence
-	 * @return current value of a sequence
-	 * @throws java.sql.SQLException when failed to execute the query
+	 * @param sql the COPY statement, which cannot take parameters
+	 * @param out where the data goes
+	 * @return the number of rows copied
+	 * @throws java.sql.SQLException when the statement failed
+	 * @throws java.io.IOException when the output could not be written
 	 */
-	
-	public int getCurrSeqVal(String sequence) throws SQLException {
-		Statement stmt = this._connection.createStatement ();
-		
-		ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-		if (rs.next()) return rs.getInt(1);
-		return -1;
+	public long copyOut (String sql, OutputStream out) throws SQLException, IOException {
+		long start = System.nanoTime ();
+		final long[] bytes = { 0 };
+		OutputStream counted = new FilterOutputStream (out){
+			public void write (byte[] b, int off, int len) throws IOException {
+				out.write (b, off, len);
+				bytes[0] += len;
+			}
+		};
+		connect ();
+		long rowCount = this._connection.unwrap (PGConnection.class).getCopyAPI ().copyOut (sql, counted);
+		record (sql, start, rowCount, bytes[0], 1);
+		return rowCount;
+	}
+
+	/**
+	 * Method to get a cached prepared statement for the SQL and bind the
+	 * parameters to its placeholders.  A statement whose parameters cannot
+	 * be bound is dropped from the cache.
+	 * 
+	 * @param sql the SQL string, with a ? placeholder for each parameter
+	 * @param params the values bound to the placeholders, in order
+	 * @return the statement ready to be executed
+	 * @throws java.sql.SQLException when the statement could not be prepared
+	 */
+	private PreparedStatement prepare (String sql, Object... params) throws SQLException {
+		connect ();
+		PreparedStatement stmt = this._statements.prepare (sql);
+		try{
+			for (int i = 0; i < params.length; ++i)
+				stmt.setObject (i + 1, params[i]);
+		}catch(SQLException e){
+			this._statements.evict (sql);
+			throw e;
+		}
+		this._running = stmt;
+		return stmt;
+	}
+
+	/**
+	 * Method to add a statement to the metrics and to the current operation.
+	 */
+	private void record (String sql, long startNanos, long rows, long bytes, long roundTrips) {
+		this._context.metrics.record (this._trace, sql, startNanos, rows, bytes, roundTrips);
+	}
+
+	/**
+	 * @return the round trips of a cursor query: one per fetchSize rows, plus the commit
+	 */
+	private long cursorRoundTrips (long rows, boolean committed) {
+		long fetches = this.fetchSize > 0 ? 1 + rows / this.fetchSize : 1;
+		return committed ? fetches + 1 : fetches;
+	}
+
+	/**
+	 * Method to make sure the month partition a row of this date goes to
+	 * exists, see create_month_partition in create.sql.  Each table and date
+	 * is only sent to the server the first time this process sees it.
+	 * 
+	 * @param table the partitioned table, in lower case
+	 * @param date the date of the row, as the user typed it
+	 * @throws java.sql.SQLException when the date is invalid or the partition could not be created
+	 */
+	public void ensurePartition (String table, String date) throws SQLException {
+		String key = table + ' ' + date;
+		if (this._context.partitionDates.contains (key))
+			return;
+		executeQuery ("SELECT create_month_partition(CAST(? AS regclass), CAST(? AS DATE))", table, date);
+		if (this._context.partitionDates.size () >= ShopContext.MAX_PARTITION_DATES)
+			this._context.partitionDates.clear ();
+		this._context.partitionDates.add (key);
+	}
+
+	/**
+	 * Method to ask the server to stop the statement this session is
+	 * running.  May be called from another thread; the statement then fails
+	 * with an SQLException in the session's thread.
+	 */
+	public void cancel () {
+		PreparedStatement stmt = this._running;
+		try{
+			if (stmt != null)
+				stmt.cancel ();
+		}catch (SQLException e){
+			// ignored, the statement may be done already.
+		}//end try
+	}
+
+	/**
+	 * Method to get the context the report dashboard runs its sessions in.
+	 * A server session shares its pool; a console session opens a small
+	 * pool of its own the first time.
+	 * 
+	 * @return a context with a connection pool
+	 */
+	public ShopContext getReportContext () {
+		if (this._context.pool != null)
+			return this._context;
+		if (this._reportContext == null){
+			ConnectionPool pool = new ConnectionPool (this._url, this._user, this._passwd,
+				ReportDashboard.REPORTS.length, ConnectionPool.DEFAULT_BORROW_TIMEOUT_MILLIS);
+			this._reportContext = new ShopContext (pool, this._context.metrics);
+		}//end if
+		return this._reportContext;
+	}
+
+	/**
+	 * Method to start recording a menu operation.  The statements run until
+	 * endOperation are counted as part of it.
+	 * 
+	 * @param name the operation, e.g. "AddCustomer"
+	 */
+	public void beginOperation (String name) {
+		this._trace = this._context.metrics.begin (name);
+	}
+
+	/**
+	 * Method to record the operation started by beginOperation.
+	 */
+	public void endOperation () {
+		if (this._trace != null){
+			this._trace.end ();
+			this._trace = null;
+		}//end if
+	}
+
+	/**
+	 * @return the latency and round trip metrics of this process
+	 */
+	public ShopMetrics getMetrics(){
+		return this._context.metrics;
+	}
+
+	/**
+	 * @return the key index used by the validation loops
+	 */
+	public KeyIndex getKeyIndex(){
+		return this._context.keys;
+	}
+
+	/**
+	 * @return the customer name index used by the customer lookups
+	 */
+	public CustomerNameIndex getNameIndex(){
+		return this._context.names;
+	}
+
+	/**
+	 * @return the customer, mechanic and car rows cached for all sessions
+	 */
+	public EntityCache getEntityCache(){
+		return this._context.entities;
+	}
+
+	/**
+	 * @return the prepared statement cache of this connection
+	 */
+	public StatementCache getStatementCache(){
+		return this._statements;
+	}
+
+	/**
+	 * Method to start a transaction.  The statements executed until
+	 * commitTransaction or rollbackTransaction succeed or fail together.
+	 * 
+	 * @throws java.sql.SQLException when the connection failed
+	 */
+	public void beginTransaction() throws SQLException {
+		connect ();
+		this._connection.setAutoCommit (false);
+	}
+
+	/**
+	 * Method to commit the current transaction and go back to autocommit.
+	 * 
+	 * @throws java.sql.SQLException when the commit failed
+	 */
+	public void commitTransaction() throws SQLException {
+		long start = System.nanoTime ();
+		this._connection.commit ();
+		this._connection.setAutoCommit (true);
+		record ("COMMIT", start, 0, 0, 1);
 	}
 
 	/**
-	 * Method to close the physical connection if it is open.
+	 * Method to undo the current transaction, if any, and go back to
+	 * autocommit.  Errors are ignored since this runs on failure paths.
+	 */
+	public void rollbackTransaction() {
+		try{
+			if (this._connection != null && !this._connection.getAutoCommit ()){
+				this._connection.rollback ();
+				this._connection.setAutoCommit (true);
+			}//end if
+		}catch (SQLException e){
+			// ignored.
+		}//end try
+	}
+
+	/**
+	 * Method to close the physical connection if it is open.  A pooled
+	 * session gives its connection back to the pool instead.
 	 */
 	public void cleanup(){
+		if (this._context.pool != null){
+			returnConnection ();
+			return;
+		}//end if
+		if (this._reportContext != null){
+			this._reportContext.pool.close ();
+		}//end if
 		try{
+			if (this._statements != null){
+				this._statements.close ();
+			}//end if
 			if (this._connection != null){
 				this._connection.close ();
 			}//end if
@@ -206,20 +729,48 @@ public class MechanicShop{
 		}//end try
 	}//end cleanup
 
+	/**
+	 * Method to publish the metrics over JMX and have them written to
+	 * mechanicshop.metricsFile (default mechanicshop-metrics.txt, empty for
+	 * none) when the process exits.
+	 * 
+	 * @param metrics the metrics of the process
+	 */
+	static void publishMetrics (final ShopMetrics metrics) {
+		metrics.register ();
+		final String file = System.getProperty ("mechanicshop.metricsFile", "mechanicshop-metrics.txt");
+		if (file.isEmpty ())
+			return;
+		Runtime.getRuntime ().addShutdownHook (new Thread(){
+			public void run(){
+				try{
+					metrics.writeTo (new File(file));
+				}catch(IOException e){
+					System.err.println ("Unable to write the metrics: " + e.getMessage ());
+				}
+			}
+		});
+	}
+
 	/**
 	 * The main execution method
 	 * 
 	 * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
 	 */
 	public static void main (String[] args) {
-		if (args.length != 3) {
+		String mode = args.length > 3 ? args[3] : "menu";
+		if (args.length < 3 || !(mode.equals("menu") || mode.equals("serve") || mode.equals("load") || mode.equals("bench") || mode.equals("batch") || mode.equals("analytics") || mode.equals("archive") || mode.equals("export") || mode.equals("generate") || mode.equals("plancheck"))) {
 			System.err.println (
 				"Usage: " + "java [-classpath <classpath>] " + MechanicShop.class.getName () +
-		            " <dbname> <port> <user>");
+		            " <dbname> <port> <user> [serve [<listen port> [<pool size> [<max desks>]]]" +
+		            " | load [<data dir> [<sql dir>]] | generate <scale> [<seed> [<out dir>]] | bench [<results file> [<data dir> ...]] | batch <script file|-> | analytics [<data dir> [<k>]] | archive <before date>" +
+		            " | export <table|6..10> <file.csv|.jsonl[.gz]> [<k>] [<from date> [<to date>]] | plancheck]");
 			return;
 		}//end if
 		
 		MechanicShop esql = null;
+		//scripts such as bench.sh stop on a non-zero exit status
+		boolean failed = false;
 		
 		try{
 			System.out.println("(1)");
@@ -237,50 +788,141 @@ public class MechanicShop{
 			String dbname = args[0];
 			String dbport = args[1];
 			String user = args[2];
+
+			if (mode.equals("load")) {
+				//bulk load of the CSV files, one connection per table of a level
+				File dataDir = new File(args.length > 4 ? args[4] : "../data");
+				File sqlDir = new File(args.length > 5 ? args[5] : "../sql");
+				ConnectionPool pool = new ConnectionPool (connectionUrl(dbname, dbport), user, "",
+					3, ConnectionPool.DEFAULT_BORROW_TIMEOUT_MILLIS);
+				try{
+					new BulkLoader (pool).load (dataDir, sqlDir);
+				}finally{
+					pool.close ();
+				}
+				return;
+			}//end if
+
+			if (mode.equals("generate")) {
+				//made up data at any scale, written to files or loaded straight into the database
+				double scale = args.length > 4 ? Double.parseDouble(args[4]) : 1;
+				long seed = args.length > 5 ? Long.parseLong(args[5]) : 1;
+				DataGenerator generator = new DataGenerator (seed, scale, Runtime.getRuntime().availableProcessors());
+				try{
+					if (args.length > 6) {
+						generator.writeTo (new File(args[6]));
+						return;
+					}//end if
+					ConnectionPool pool = new ConnectionPool (connectionUrl(dbname, dbport), user, "",
+						3, ConnectionPool.DEFAULT_BORROW_TIMEOUT_MILLIS);
+					try{
+						new BulkLoader (pool).load (generator, new File("../sql"));
+					}finally{
+						pool.close ();
+					}
+				}finally{
+					generator.close ();
+				}
+				return;
+			}//end if
+
+			if (mode.equals("bench")) {
+				//benchmarks, the database is reloaded for every data directory
+				File resultsFile = new File(args.length > 4 ? args[4] : "bench-results.jsonl");
+				List<File> dataDirs = new ArrayList<File>();
+				for (int i = 5; i < args.length; ++i)
+					dataDirs.add(new File(args[i]));
+				if (dataDirs.isEmpty())
+					dataDirs.add(new File("../data"));
+				ConnectionPool pool = new ConnectionPool (connectionUrl(dbname, dbport), user, "",
+					3, ConnectionPool.DEFAULT_BORROW_TIMEOUT_MILLIS);
+				try{
+					new ShopBenchmark (pool, resultsFile).run (dataDirs, new File("../sql"));
+				}finally{
+					pool.close ();
+				}
+				return;
+			}//end if
+
+			if (mode.equals("serve")) {
+				//server mode, one session per connected desk
+				int listenPort = args.length > 4 ? Integer.parseInt(args[4]) : 9000;
+				int poolSize = args.length > 5 ? Integer.parseInt(args[5]) : Runtime.getRuntime().availableProcessors() * 2;
+				int maxDesks = args.length > 6 ? Integer.parseInt(args[6]) : poolSize * 8;
+				final ConnectionPool pool = new ConnectionPool (connectionUrl(dbname, dbport), user, "",
+					poolSize, ConnectionPool.DEFAULT_BORROW_TIMEOUT_MILLIS);
+				Runtime.getRuntime().addShutdownHook(new Thread(){
+					public void run(){
+						pool.close ();
+					}
+				});
+				ShopContext context = new ShopContext (pool);
+				context.load ();
+				publishMetrics (context.metrics);
+				System.out.println (context);
+				new ShopServer (context, listenPort, maxDesks).serve ();
+				return;
+			}//end if
 			
 			esql = new MechanicShop (dbname, dbport, user, "");
-			
-			boolean keepon = true;
-			while(keepon){
-				System.out.println("------------------------------------------------------");
-                                System.out.println("|               BAKALOV MECHANIC SHOP                |");
-                                System.out.println("|                     MAIN MENU                      |");
-                                System.out.println("------------------------------------------------------");
-                                System.out.println("| 1. AddCustomer                                     |");
-                                System.out.println("| 2. AddMechanic                                     |");
-                                System.out.println("| 3. AddCar                                          |");
-                                System.out.println("| 4. InsertServiceRequest                            |");
-                                System.out.println("| 5. CloseServiceRequest                             |");
-                                System.out.println("| 6. ListCustomersWithBillLessThan100                |");
-                                System.out.println("| 7. ListCustomersWithMoreThan20Cars                 |");
-                                System.out.println("| 8. ListCarsBefore1995With50000Milles               |");
-                                System.out.println("| 9. ListKCarsWithTheMostServices                    |");
-                                System.out.println("| 10. ListCustomersInDescendingOrderOfTheirTotalBill |");
-                                System.out.println("| 11. < EXIT                                         |");
-                                System.out.println("------------------------------------------------------");
-				
-				/*
-				 * FOLLOW THE SPECIFICATION IN THE PROJECT DESCRIPTION
-				 */
-				switch (readChoice()){
-					case 1: AddCustomer(esql); break;
-					case 2: AddMechanic(esql); break;
-					case 3: AddCar(esql); break;
-					case 4: InsertServiceRequest(esql); break;
-					case 5: CloseServiceRequest(esql); break;
-					case 6: ListCustomersWithBillLessThan100(esql); break;
-					case 7: ListCustomersWithMoreThan20Cars(esql); break;
-					case 8: ListCarsBefore1995With50000Milles(esql); break;
-					case 9: ListKCarsWithTheMostServices(esql); break;
-					case 10: ListCustomersInDescendingOrderOfTheirTotalBill(esql); break;
-					case 11: keepon = false; break;
+			publishMetrics (esql.getMetrics ());
+			if (mode.equals("export")) {
+				//streams a table or a report to a file
+				if (args.length < 6)
+					throw new IllegalArgumentException ("export needs what to export and a file");
+				String[] exportArgs = new String[args.length - 6];
+				System.arraycopy (args, 6, exportArgs, 0, exportArgs.length);
+				new ReportExporter (esql).export (args[4], exportArgs, new File(args[5]));
+				return;
+			}//end if
+			if (mode.equals("archive")) {
+				//moves the month partitions before the date to the archive schema
+				String before = args.length > 4 ? args[4] : "";
+				for (String table : new String[]{ "service_request", "closed_request" }) {
+					List<List<String>> archived = esql.executeQueryAndReturnResult (
+						"SELECT archive_month_partitions(CAST(? AS regclass), CAST(? AS DATE))", table, before);
+					System.out.println (table + ": " + archived.get(0).get(0) + " month partitions archived");
 				}
-			}
+				return;
+			}//end if
+			if (mode.equals("analytics")) {
+				//reports 6-10 from the CSV snapshot, checked against the database
+				File dataDir = new File(args.length > 4 ? args[4] : "../data");
+				int k = args.length > 5 ? Integer.parseInt(args[5]) : 10;
+				OfflineAnalytics analytics = OfflineAnalytics.load (dataDir, System.out);
+				//a report that does not match fails the run, like a plan check
+				failed = !analytics.check (esql, k);
+				System.out.println (failed ? "Some reports do not match." : "All reports match.");
+				return;
+			}//end if
+			if (mode.equals("plancheck")) {
+				//fails when a query the desks wait on would scan a table instead of using its index
+				failed = !new PlanCheck (esql).run ();
+				return;
+			}//end if
+			if (mode.equals("batch")) {
+				//non-interactive mode, "-" reads the script from standard input
+				String script = args.length > 4 ? args[4] : "-";
+				BufferedReader reader = script.equals("-")
+					? new BufferedReader(new InputStreamReader(System.in))
+					: new BufferedReader(new FileReader(script));
+				try{
+					//a group that was rolled back fails the run
+					failed = new BatchRunner (esql, Integer.getInteger("mechanicshop.batch.groupSize", BatchRunner.DEFAULT_GROUP_SIZE)).run (reader) > 0;
+				}finally{
+					reader.close ();
+				}
+				return;
+			}//end if
+			runMenu (esql);
 		}catch(Exception e){
 			System.err.println (e.getMessage ());
+			failed = true;
 		}finally{
 			try{
 				if(esql != null) {
+					System.out.println(esql.getStatementCache());
+					System.out.println(esql.getEntityCache());
 					System.out.print("Disconnecting from database...");
 					esql.cleanup ();
 					System.out.println("Done\n\nBye !");
@@ -288,19 +930,157 @@ public class MechanicShop{
 			}catch(Exception e){
 				// ignored.
 			}
+			if (failed)
+				System.exit (1);
+		}
+	}
+
+	//queries of reports 6 to 10; report 7 runs the same query as report 8
+	static final String REPORT_6_SQL = "SELECT C.id, C.fname, B.total_bill FROM Customer_Bill B, Customer C WHERE B.total_bill < 100 AND C.id = B.customer_id ORDER BY B.total_bill";
+	static final String REPORT_8_SQL = "SELECT C.make, C.model, C.year FROM Car C, Service_Request SR WHERE C.year <= 1995 AND C.vin = SR.car_vin AND SR.odometer < 50000 GROUP BY C.vin";
+	static final String REPORT_9_SQL = "SELECT CAR.vin, CAR.make, CAR.model, SC.service_count FROM Car_Service_Count SC, Car CAR WHERE CAR.vin = SC.car_vin ORDER BY SC.service_count DESC, SC.car_vin LIMIT ?";
+	static final String REPORT_10_SQL = "SELECT C.fname, C.lname, B.total_bill FROM Customer_Bill B, Customer C WHERE C.id = B.customer_id ORDER BY B.total_bill DESC";
+	//the same reports over a date range; the date filters prune the month partitions
+	static final String REPORT_6_RANGE_SQL = "SELECT C.id, C.fname, SUM(CR.bill) AS total_bill FROM Closed_Request CR, Service_Request SR, Customer C " +
+		"WHERE CR.date BETWEEN CAST(? AS DATE) AND CAST(? AS DATE) AND SR.rid = CR.rid AND C.id = SR.customer_id GROUP BY C.id, C.fname HAVING SUM(CR.bill) < 100 ORDER BY total_bill";
+	static final String REPORT_8_RANGE_SQL = "SELECT C.make, C.model, C.year FROM Car C, Service_Request SR WHERE C.year <= 1995 AND C.vin = SR.car_vin AND SR.odometer < 50000 " +
+		"AND SR.date BETWEEN CAST(? AS DATE) AND CAST(? AS DATE) GROUP BY C.vin";
+	static final String REPORT_9_RANGE_SQL = "SELECT CAR.vin, CAR.make, CAR.model, COUNT(*) AS service_count FROM Service_Request SR, Car CAR " +
+		"WHERE SR.date BETWEEN CAST(? AS DATE) AND CAST(? AS DATE) AND CAR.vin = SR.car_vin GROUP BY CAR.vin ORDER BY service_count DESC, CAR.vin LIMIT ?";
+	static final String REPORT_10_RANGE_SQL = "SELECT C.fname, C.lname, SUM(CR.bill) AS total_bill FROM Closed_Request CR, Service_Request SR, Customer C " +
+		"WHERE CR.date BETWEEN CAST(? AS DATE) AND CAST(? AS DATE) AND SR.rid = CR.rid AND C.id = SR.customer_id GROUP BY C.id, C.fname, C.lname ORDER BY total_bill DESC";
+	//the open and close workflows, see WORKFLOWS in create.sql
+	static final String OPEN_REQUEST_SQL = "SELECT * FROM open_service_request(?, ?, ?, CAST(? AS DATE), ?, ?)";
+	static final String CLOSE_REQUEST_SQL = "SELECT * FROM close_service_request(?, ?, ?, CAST(? AS DATE), ?, ?)";
+	static final String REQUEST_EXISTS_SQL = "SELECT 1 FROM Service_Request WHERE (rid = ?)";
+	//claims the first waiting request for a mechanic; requests another desk is claiming are skipped, not waited for
+	static final String CLAIM_NEXT_SQL = "WITH job AS (UPDATE Open_Request SET status = 'R', mid = ?, claimed = now() WHERE rid = " +
+		"(SELECT rid FROM Open_Request WHERE status = 'W' ORDER BY date, odometer DESC, rid LIMIT 1 FOR UPDATE SKIP LOCKED) RETURNING rid, date) " +
+		"SELECT SR.rid, SR.date, C.fname, C.lname, CAR.vin, CAR.make, CAR.model, SR.odometer, SR.complain " +
+		"FROM job, Service_Request SR, Customer C, Car CAR WHERE SR.rid = job.rid AND SR.date = job.date AND C.id = SR.customer_id AND CAR.vin = SR.car_vin";
+	static final String RELEASE_JOB_SQL = "UPDATE Open_Request SET status = 'W', mid = NULL, claimed = NULL WHERE (rid = ?)";
+	//the same reports for KeysetPager: no ORDER BY, the sort keys come last when they are not shown
+	//the grouped range reports take the page's key predicate inside, at KeysetPager.KEYSET
+	static final String REPORT_6_PAGE_SQL = "SELECT B.customer_id AS id, C.fname, B.total_bill FROM Customer_Bill B, Customer C WHERE B.total_bill < 100 AND C.id = B.customer_id";
+	static final String REPORT_8_PAGE_SQL = "SELECT C.make, C.model, C.year, C.vin FROM Car C WHERE C.year <= 1995 " +
+		"AND EXISTS (SELECT 1 FROM Service_Request SR WHERE SR.car_vin = C.vin AND SR.odometer < 50000)";
+	static final String REPORT_10_PAGE_SQL = "SELECT C.fname, C.lname, B.total_bill, B.customer_id AS id FROM Customer_Bill B, Customer C WHERE C.id = B.customer_id";
+	static final String REPORT_6_RANGE_PAGE_SQL = "SELECT C.id, C.fname, SUM(CR.bill) AS total_bill FROM Closed_Request CR, Service_Request SR, Customer C " +
+		"WHERE CR.date BETWEEN CAST(? AS DATE) AND CAST(? AS DATE) AND SR.rid = CR.rid AND C.id = SR.customer_id GROUP BY C.id, C.fname HAVING SUM(CR.bill) < 100 AND " + KeysetPager.KEYSET;
+	static final String REPORT_8_RANGE_PAGE_SQL = "SELECT C.make, C.model, C.year, C.vin FROM Car C WHERE C.year <= 1995 " +
+		"AND EXISTS (SELECT 1 FROM Service_Request SR WHERE SR.car_vin = C.vin AND SR.odometer < 50000 AND SR.date BETWEEN CAST(? AS DATE) AND CAST(? AS DATE)) AND " + KeysetPager.KEYSET;
+	static final String REPORT_10_RANGE_PAGE_SQL = "SELECT C.fname, C.lname, SUM(CR.bill) AS total_bill, C.id FROM Closed_Request CR, Service_Request SR, Customer C " +
+		"WHERE CR.date BETWEEN CAST(? AS DATE) AND CAST(? AS DATE) AND SR.rid = CR.rid AND C.id = SR.customer_id GROUP BY C.id, C.fname, C.lname HAVING " + KeysetPager.KEYSET;
+	static final String[] RANGE_BILL_KEYS = { "SUM(CR.bill)", "C.id" };
+	static final String[] RANGE_VIN_KEYS = { "C.vin" };
+
+	//revenue reports, added up from the month x mechanic x make cube; a date range covers the whole months of its first and last date
+	static final String CUBE_RANGE = "R.month BETWEEN date_trunc('month', CAST(? AS DATE)) AND CAST(? AS DATE)";
+	static final String REVENUE_BY_MONTH_SQL = "SELECT to_char(R.month, 'YYYY-MM') AS month, SUM(R.revenue) AS revenue, SUM(R.jobs) AS jobs, " +
+		"ROUND(SUM(R.revenue) / CAST(SUM(R.jobs) AS NUMERIC), 2) AS average_bill FROM Revenue_Cube R WHERE " + CUBE_RANGE + " GROUP BY R.month ORDER BY R.month";
+	static final String REVENUE_BY_MECHANIC_SQL = "SELECT M.id, M.fname, M.lname, SUM(R.revenue) AS revenue, SUM(R.jobs) AS jobs, " +
+		"ROUND(SUM(R.revenue) / CAST(SUM(R.jobs) AS NUMERIC), 2) AS average_bill FROM Revenue_Cube R, Mechanic M WHERE " + CUBE_RANGE + " AND M.id = R.mid " +
+		"GROUP BY M.id, M.fname, M.lname ORDER BY revenue DESC, M.id";
+	static final String REVENUE_BY_MAKE_SQL = "SELECT R.make, SUM(R.revenue) AS revenue, SUM(R.jobs) AS jobs, " +
+		"ROUND(SUM(R.revenue) / CAST(SUM(R.jobs) AS NUMERIC), 2) AS average_bill FROM Revenue_Cube R WHERE " + CUBE_RANGE + " GROUP BY R.make ORDER BY revenue DESC, R.make";
+	static final String REVENUE_CUBE_SQL = "SELECT to_char(R.month, 'YYYY-MM') AS month, R.mid, R.make, R.revenue, R.jobs, " +
+		"ROUND(R.revenue / CAST(R.jobs AS NUMERIC), 2) AS average_bill FROM Revenue_Cube R WHERE " + CUBE_RANGE + " ORDER BY R.month, R.mid, R.make";
+
+	//menu operations by choice, as named in the metrics
+	static final String[] OPERATIONS = {
+		null, "AddCustomer", "AddMechanic", "AddCar", "InsertServiceRequest", "CloseServiceRequest",
+		"ListCustomersWithBillLessThan100", "ListCustomersWithMoreThan20Cars", "ListCarsBefore1995With50000Milles",
+		"ListKCarsWithTheMostServices", "ListCustomersInDescendingOrderOfTheirTotalBill", null, "ReportDashboard",
+		"BrowseTable", "NextJob", "CloseServiceRequests", "RevenueReport"
+	};
+
+	/**
+	 * Method to show the main menu on the session's terminal and run the
+	 * chosen operations until the user exits.  In server mode a connection
+	 * is borrowed only while an operation talks to the database; it is given
+	 * back at each prompt and at the end of the operation.
+	 * 
+	 * @param esql the session
+	 * @throws java.sql.SQLException when an operation failed
+	 */
+	public static void runMenu (MechanicShop esql) throws SQLException {
+		boolean keepon = true;
+		while(keepon){
+			esql.out.println("------------------------------------------------------");
+                        esql.out.println("|               BAKALOV MECHANIC SHOP                |");
+                        esql.out.println("|                     MAIN MENU                      |");
+                        esql.out.println("------------------------------------------------------");
+                        esql.out.println("| 1. AddCustomer                                     |");
+                        esql.out.println("| 2. AddMechanic                                     |");
+                        esql.out.println("| 3. AddCar                                          |");
+                        esql.out.println("| 4. InsertServiceRequest                            |");
+                        esql.out.println("| 5. CloseServiceRequest                             |");
+                        esql.out.println("| 6. ListCustomersWithBillLessThan100                |");
+                        esql.out.println("| 7. ListCustomersWithMoreThan20Cars                 |");
+                        esql.out.println("| 8. ListCarsBefore1995With50000Milles               |");
+                        esql.out.println("| 9. ListKCarsWithTheMostServices                    |");
+                        esql.out.println("| 10. ListCustomersInDescendingOrderOfTheirTotalBill |");
+                        esql.out.println("| 11. < EXIT                                         |");
+                        esql.out.println("| 12. ReportDashboard (6-10 at once)                 |");
+                        esql.out.println("| 13. BrowseTable                                    |");
+                        esql.out.println("| 14. NextJob                                        |");
+                        esql.out.println("| 15. CloseServiceRequests (many at once)            |");
+                        esql.out.println("| 16. RevenueReport                                  |");
+                        esql.out.println("------------------------------------------------------");
+			
+			/*
+			 * FOLLOW THE SPECIFICATION IN THE PROJECT DESCRIPTION
+			 */
+			int choice = readChoice(esql);
+			if (choice == 11){
+				keepon = false;
+				continue;
+			}//end if
+			esql.beginOperation (choice > 0 && choice < OPERATIONS.length ? OPERATIONS[choice] : "Unknown");
+			try{
+				switch (choice){
+					case 1: AddCustomer(esql); break;
+					case 2: AddMechanic(esql); break;
+					case 3: AddCar(esql); break;
+					case 4: InsertServiceRequest(esql); break;
+					case 5: CloseServiceRequest(esql); break;
+					case 6: ListCustomersWithBillLessThan100(esql); break;
+					case 7: ListCustomersWithMoreThan20Cars(esql); break;
+					case 8: ListCarsBefore1995With50000Milles(esql); break;
+					case 9: ListKCarsWithTheMostServices(esql); break;
+					case 10: ListCustomersInDescendingOrderOfTheirTotalBill(esql); break;
+					case 12: ReportDashboard(esql); break;
+					case 13: BrowseTable(esql); break;
+					case 14: NextJob(esql); break;
+					case 15: CloseServiceRequests(esql); break;
+					case 16: RevenueReport(esql); break;
+				}
+			}finally{
+				esql.endOperation ();
+				esql.returnConnection ();
+			}
 		}
 	}
 
-	public static int readChoice() {
+	public static int readChoice(MechanicShop esql) {
 		int input;
 		// returns only if a correct value is given.
 		do {
-			System.out.print("Please make your choice: ");
-			try { // read the integer, parse it and break.
-				input = Integer.parseInt(in.readLine());
+			esql.out.print("Please make your choice: ");
+			String line;
+			try {
+				line = esql.in.readLine();
+			}catch (IOException e) {
+				line = null;
+			}//end try
+			// the desk hung up, there is nobody left to ask
+			if (line == null)
+				throw new IllegalStateException("Input closed");
+			try { // parse the integer and break.
+				input = Integer.parseInt(line.trim());
 				break;
-			}catch (Exception e) {
-				System.out.println("Your input is invalid!");
+			}catch (NumberFormatException e) {
+				esql.out.println("Your input is invalid!");
 				continue;
 			}//end try
 		}while (true);
@@ -312,85 +1092,90 @@ public class MechanicShop{
         public static void AddCustomer(MechanicShop esql) throws SQLException{//1
 
                 //recieves customer's full name
-                System.out.println("Enter Customer First Name:");
+                esql.out.println("Enter Customer First Name:");
                 String fname = "";
                 try{
-                                                fname = in.readLine();
+                                                fname = esql.in.readLine();
                 }catch(Exception e1){
-                                                System.out.println("Invalid input");
+                                                esql.out.println("Invalid input");
 
                 }
 
-                System.out.println("Enter Customer Last Name:");
+                esql.out.println("Enter Customer Last Name:");
                 String lname = "";
                 try{
-                                                lname = in.readLine();
+                                                lname = esql.in.readLine();
                 }catch(Exception e1){
-                                                System.out.println("Invalid input");
+                                                esql.out.println("Invalid input");
 
                 }
 
-                //checks amount of rows in Customers and automatically assigns id
-                int cust_id = esql.executeQuery("SELECT * FROM Customer");
+                //takes the next id from the customer key sequence
+                int cust_id = esql.customerKeys.nextKey();
 
                 //get customer phone number
-                System.out.println("Enter Customer Phone Number:");
+                esql.out.println("Enter Customer Phone Number:");
                 String phone_num_s = "";
                 try{
-                                                phone_num_s = in.readLine();
+                                                phone_num_s = esql.in.readLine();
                 }catch(Exception e1){
-                                                System.out.println("Invalid input");
+                                                esql.out.println("Invalid input");
 
                 }
 
                 //recieve customer address
-                System.out.println("Enter Customer Address:");
+                esql.out.println("Enter Customer Address:");
                 String addr = "";
                 try{
-                                                addr = in.readLine();
+                                                addr = esql.in.readLine();
                 }catch(Exception e1){
-                                                System.out.println("Invalid input");
+                                                esql.out.println("Invalid input");
 
                 }
 
                 //execute SQL statements
-                esql.executeUpdate("INSERT INTO Customer VALUES (" + cust_id + ",'" + fname + "' , '" + lname + "', '" + phone_num_s + "' , '" + addr + "');");
-                esql.executeQueryAndPrintResult("Select * from Customer;");
+                esql.executeUpdate("INSERT INTO Customer VALUES (?, ?, ?, ?, ?)", cust_id, fname, lname, phone_num_s, addr);
+                esql.getKeyIndex().addCustomer(cust_id);
+                esql.getNameIndex().add(cust_id, fname, lname);
+                esql.getEntityCache().putCustomer(cust_id, fname, lname, phone_num_s, addr);
+                esql.executeQueryAndPrintResult("SELECT * FROM Customer WHERE (id = ?)", cust_id);
         }
 	
 	//This function adds a mechanic
         //written by Raajitha Rajkumar
 	public static void AddMechanic(MechanicShop esql) throws SQLException{//2
 		//takes in any name as input
-                System.out.println("Enter Mechanic's First Name:");
+                esql.out.println("Enter Mechanic's First Name:");
                 String fname = "";
                 try{
-                                fname = in.readLine();
+                                fname = esql.in.readLine();
                 }catch(Exception e1){
-                                System.out.println("Invalid input");
+                                esql.out.println("Invalid input");
 
                 }
-                System.out.println("Enter Mechanic's Last Name:");
+                esql.out.println("Enter Mechanic's Last Name:");
                 String lname = "";
                 try{
-                                lname = in.readLine();
+                                lname = esql.in.readLine();
                 }catch(Exception e1){
-                                System.out.println("Invalid input");
+                                esql.out.println("Invalid input");
 
                 }
-                //this function returns the rows of mechanics and corresponds to the ID, if there are 501 rows, then the id will be 501 and assigns it to mech_id
-                int mech_id = esql.executeQuery("SELECT * FROM Mechanic");
+                //takes the next id from the mechanic key sequence
+                int mech_id = esql.mechanicKeys.nextKey();
                 //gets experience as input
-                System.out.println("Enter the Mechanic's years of experience:");
-                int mech_exp = readChoice();
+                esql.out.println("Enter the Mechanic's years of experience:");
+                int mech_exp = readChoice(esql);
                 //this assures that the years of experience are within bounds
                 while(mech_exp > 99){
-                        System.out.println("Cannot have that many years of experience, please list a year less than that");
-                        mech_exp = readChoice();
+                        esql.out.println("Cannot have that many years of experience, please list a year less than that");
+                        mech_exp = readChoice(esql);
                 }
-                System.out.println("The mechanic's id is: " + mech_id);
-                esql.executeUpdate("INSERT INTO Mechanic VALUES (" + mech_id + ",'" + fname + "' , '" + lname + "'," + mech_exp+ ");");
-                esql.executeQueryAndPrintResult("Select * from Mechanic;");
+                esql.out.println("The mechanic's id is: " + mech_id);
+                esql.executeUpdate("INSERT INTO Mechanic VALUES (?, ?, ?, ?)", mech_id, fname, lname, mech_exp);
+                esql.getKeyIndex().addMechanic(mech_id);
+                esql.getEntityCache().putMechanic(mech_id, fname, lname, mech_exp);
+                esql.executeQueryAndPrintResult("SELECT * FROM Mechanic WHERE (id = ?)", mech_id);
 	}
 	
         //This function adds a car to the database
@@ -398,42 +1183,44 @@ public class MechanicShop{
         public static void AddCar(MechanicShop esql) throws SQLException{//3
 
                 //recives car VIN
-                System.out.println("Enter the car's VIN:");
+                esql.out.println("Enter the car's VIN:");
                 String vin = "";
                 try{
-                                vin = in.readLine();
+                                vin = esql.in.readLine();
                 }catch(Exception e1){
-                                System.out.println("Invalid input");
+                                esql.out.println("Invalid input");
 
                 }
 
                 //recives car's make
-                System.out.println("Enter Car's Make:");
+                esql.out.println("Enter Car's Make:");
                 String make = "";
                 try{
-                                make = in.readLine();
+                                make = esql.in.readLine();
                 }catch(Exception e1){
-                                System.out.println("Invalid input");
+                                esql.out.println("Invalid input");
 
                 }
 
                 //recieves car's model
-                System.out.println("Enter Car's Model:");
+                esql.out.println("Enter Car's Model:");
                 String model = "";
                 try{
-                                model = in.readLine();
+                                model = esql.in.readLine();
                 }catch(Exception e1){
-                                System.out.println("Invalid input");
+                                esql.out.println("Invalid input");
 
                 }
 
                 //recieves car's year
-                System.out.println("Enter Car's year");
-                int year = readChoice();
+                esql.out.println("Enter Car's year");
+                int year = readChoice(esql);
 
                 //execute SQL statements
-                esql.executeUpdate("INSERT INTO Car VALUES ('" + vin + "','" + make + "' , '" + model + "'," + year + ");");
-                esql.executeQueryAndPrintResult("Select * from Car;");
+                esql.executeUpdate("INSERT INTO Car VALUES (?, ?, ?, ?)", vin, make, model, year);
+                esql.getKeyIndex().addCar(vin);
+                esql.getEntityCache().putCar(vin, make, model, year);
+                esql.executeQueryAndPrintResult("SELECT * FROM Car WHERE (vin = ?)", vin);
         }
 	
 	//This function makes a new sercvice request for new customers or old
@@ -442,110 +1229,168 @@ public class MechanicShop{
         //Written by Raajitha Rajkumar
         public static void InsertServiceRequest(MechanicShop esql) throws SQLException{//4
 
-                //Get customer's last name
-                System.out.println("Enter Customer's Last Name:");
-                String lname = "";
-                try{
-                                lname = in.readLine();
-                }catch(Exception e9){
-                                System.out.println("Invalid input");
+                //Get customer's last name, the start of it is enough but it can not be empty
+                String query = "";
+                while(query.isEmpty() || query.startsWith(",")){
+                        esql.out.println("Enter Customer's Last Name (or the start of it, add \", <first name>\" to narrow it down):");
+                        String lname = "";
+                        try{
+                                        lname = esql.in.readLine();
+                        }catch(Exception e9){
+                                        esql.out.println("Invalid input");
 
+                        }
+                        if(lname == null)
+                                throw new IllegalStateException("Input closed");
+                        query = lname.trim();
                 }
-                String cap = lname.substring(0, 1).toUpperCase() + lname.substring(1);
 		
-		//checks if there are rows existing with that last name
-                int rows = esql.executeQuery("SELECT * FROM Customer  WHERE (lname = '" + cap + "')");
+		//lists the customers with that name from the name index, or the closest names if there are none
+                Set<Integer> suggested = new HashSet<Integer>();
+                int rows = ShowCustomerCandidates(esql, query, suggested);
 
                 //if there are rows, checks if it is a returning customer, otherwise get's added into the database
                 if(rows > 0){
-                                System.out.println("That last name is in our file! Please check your corresponsding customer id");
-                                esql.executeQueryAndPrintResult("Select * from Customer WHERE (lname = '" + cap + "')");
-                                System.out.println("Are you a returning customer (yes/no)?");
+                                esql.out.println("Please check your corresponding customer id above");
+                                esql.out.println("Are you a returning customer (yes/no)?");
 
                                 String returning = "";
                                 try{
-                                                returning = in.readLine();
+                                                returning = esql.in.readLine();
                                 }catch(Exception e1){
-                                                System.out.println("Invalid input");
+                                                esql.out.println("Invalid input");
                                 }
-                                if(returning.equals("yes")){
-                                                esql.executeQueryAndPrintResult("Select * from Customer WHERE (lname = '" + cap + "')");
-                                }else if(returning.equals("no")){
-                                                System.out.println("You have not been added to the system yet, please continue with adding your info and car info.");
+                                if(returning.equals("no")){
+                                                esql.out.println("You have not been added to the system yet, please continue with adding your info and car info.");
                                                 AddCustomer(esql);
                                                 AddCar(esql);
-                                                System.out.println("You have now been added to the database!");
-                                                esql.executeQueryAndPrintResult("Select * from Customer WHERE (lname = '" + cap + "')");
+                                                esql.out.println("You have now been added to the database!");
+                                                ShowCustomerCandidates(esql, query, suggested);
                                 }
                 }else{
-                        System.out.println("You have not been added to the system yet, please continue with adding your info and car info.");
+                        esql.out.println("You have not been added to the system yet, please continue with adding your info and car info.");
                         AddCustomer(esql);
                         AddCar(esql);
-                        System.out.println("You have now been added to the database!");
-                        esql.executeQueryAndPrintResult("Select * from Customer WHERE (lname = '" + cap + "')");
+                        esql.out.println("You have now been added to the database!");
+                        ShowCustomerCandidates(esql, query, suggested);
                 }
 
                 //get's customer id
                 int custid = 0;
                 int check = 0;
-                //checks if id is valid
+                //checks if id is valid and is one of the customers with that name
                 while(check < 1){
-                        System.out.println("Print a valid customer id:");
-                        custid = readChoice();
-                        check = esql.executeQuery("SELECT * FROM Customer WHERE (id = " + custid +" AND lname = '" + cap + "')");
+                        esql.out.println("Print a valid customer id:");
+                        custid = readChoice(esql);
+                        //only ids the key index may know are confirmed, from the entity cache or the database
+                        String[] customer = esql.getKeyIndex().mayHaveCustomer(custid) ? esql.getEntityCache().getCustomer(esql, custid) : null;
+                        if(customer != null && (suggested.contains(custid) || CustomerNameIndex.matches(query, customer[1], customer[2])))
+                                check = 1;
                 }
 
-                //prints cars owned by customer
-                esql.executeQueryAndPrintResult("Select C.vin, C.make, C.model FROM Car C, Customer C1, Owns O WHERE (O.customer_id = " + custid + " AND C1.id = " + custid + " AND O.car_vin = C.vin)");
-                System.out.println("Your cars are displayed above with the corresponding vin");
+                //prints cars owned by customer, a returning customer's come from the entity cache
+                List<String[]> owned = new ArrayList<String[]>();
+                for(String[] c : esql.getEntityCache().getOwnedCars(esql, custid))
+                        owned.add(new String[]{ c[0], c[1], c[2] });
+                esql.printResult(new String[]{ "vin", "make", "model" }, owned);
+                esql.out.println("Your cars are displayed above with the corresponding vin");
 		
 		//get's vin as input, and checks if it's valid
                 check = 0;
                 String car = "";
                 while(check < 1){
-                        System.out.println("Select which car you'd like to make a service request on by typing in the correct vin:");
+                        esql.out.println("Select which car you'd like to make a service request on by typing in the correct vin:");
                         String c = "";
                         try{
-                                                c = in.readLine();
+                                                c = esql.in.readLine();
                         }catch(Exception e10){
-                                                System.out.println("Invalid input");
+                                                esql.out.println("Invalid input");
 
                         }
                         car = c.toUpperCase();
-                        check = esql.executeQuery("SELECT * FROM Car WHERE (vin = '" + car + "')");
+                        if(esql.getKeyIndex().mayHaveCar(car) && esql.getEntityCache().getCar(esql, car) != null)
+                                check = 1;
                 }
 
                 //get's date
-                System.out.println("What is the date?");
+                esql.out.println("What is the date?");
                 String currdate = "";
                 try{
-                                currdate = in.readLine();
+                                currdate = esql.in.readLine();
                 }catch(Exception e9){
-                                System.out.println("Invalid input");
+                                esql.out.println("Invalid input");
 
                 }
 
                 //get's odometer reading
-                System.out.println("What is the odometer reading of the car (print only digits)?");
-                int odometer = readChoice();
-                System.out.println("What is the complaint you have for your car?");
+                esql.out.println("What is the odometer reading of the car (print only digits)?");
+                int odometer = readChoice(esql);
+                esql.out.println("What is the complaint you have for your car?");
                 String complaint = "";
                 try{
-                                                complaint = in.readLine();
+                                                complaint = esql.in.readLine();
                 }catch(Exception e10){
-                                                System.out.println("Invalid input");
+                                                esql.out.println("Invalid input");
 
                 }
 
-                //checks rows of requests and assigns corresponding id
-                int rid = esql.executeQuery("SELECT * FROM Service_Request");
+                //takes the next request id from the service request key sequence
+                int rid = esql.requestKeys.nextKey();
 
-                //executes statements
-                esql.executeUpdate("INSERT INTO Service_Request VALUES(" + rid + "," + custid + ",'" + car + "','" + currdate + "', " + odometer + ",'" + complaint +"')");
-                esql.executeQueryAndPrintResult("SELECT * FROM Service_Request WHERE (rid = " + rid + ")");
+                //one call checks the ids, inserts the request, updates the car's service counter and returns the new row
+                ColumnarResult opened = esql.executeQueryAndReturnColumns(OPEN_REQUEST_SQL, rid, custid, car, currdate, odometer, complaint);
+                esql.getKeyIndex().addRequest(rid);
+                esql.printResult(opened);
 
         }
 		
+	//This function prints the customers whose name starts with the query, a page at a time
+        //The names come from the in-memory name index, so paging through them costs no database round trip
+        //When no name starts with the query, the closest names are looked up in the database instead, their ids are added to suggested
+        public static int ShowCustomerCandidates(MechanicShop esql, String query, Set<Integer> suggested) throws SQLException{
+                final int pageSize = 10;
+                int shown = 0;
+                String after = null;
+                while(true){
+                        //one extra entry tells us if there is another page
+                        List<CustomerNameIndex.Entry> page = esql.getNameIndex().search(query, after, pageSize + 1);
+                        if(page.isEmpty())
+                                break;
+                        if(shown == 0)
+                                esql.out.println("That name is in our file!");
+                        for(int i = 0; i < page.size() && i < pageSize; ++i)
+                                PrintCustomerCandidate(esql, page.get(i));
+                        shown += Math.min(page.size(), pageSize);
+                        if(page.size() <= pageSize)
+                                return shown;
+                        esql.out.println("Show more (yes/no)?");
+                        String more = "";
+                        try{
+                                more = esql.in.readLine();
+                        }catch(Exception e1){
+                                esql.out.println("Invalid input");
+                        }
+                        if(!"yes".equals(more))
+                                return shown;
+                        after = page.get(pageSize - 1).key;
+                }
+
+                if(query.isEmpty())
+                        return 0;
+                List<CustomerNameIndex.Entry> similar = CustomerNameIndex.fuzzySearch(esql, query, pageSize);
+                if(!similar.isEmpty())
+                        esql.out.println("No customer has that name, did you mean:");
+                for(CustomerNameIndex.Entry entry : similar){
+                        PrintCustomerCandidate(esql, entry);
+                        suggested.add(entry.id);
+                }
+                return similar.size();
+        }
+
+        public static void PrintCustomerCandidate(MechanicShop esql, CustomerNameIndex.Entry entry){
+                esql.out.println(String.format("%-10d %-32s %s", entry.id, entry.fname, entry.lname));
+        }
+	
 	//This function creates a Closed Service Request
         //This function requires a RID and mechanic ID 
         //This function also checks whether the mechanic id and rid are valid
@@ -558,32 +1403,42 @@ public class MechanicShop{
                 //asks for rid as input and checks if it is valid
                 int check = 0;
                 while(check < 1){
-                        System.out.println("Enter a valid Service Request RID (if we keep asking, the id is not valid):");
-                        rid = readChoice();
-                        check = esql.executeQuery("SELECT * FROM Service_Request WHERE (rid = " + rid + ")");
+                        esql.out.println("Enter a valid Service Request RID (if we keep asking, the id is not valid):");
+                        rid = readChoice(esql);
+                        if(esql.getKeyIndex().mayHaveRequest(rid))
+                                check = esql.executeQuery(REQUEST_EXISTS_SQL, rid);
                 }
 
                 //asks for mechanic id and checks if it is valid
-                check = 0;
-                while(check < 1){
-                        System.out.println("Enter a valid Mechanic ID that worked on your car (if we keep asking, the id is not valid):");
-                        mid = readChoice();
-                        check = esql.executeQuery("SELECT * FROM Mechanic WHERE (id = " + mid + ")");
+                esql.out.println("Enter a valid Mechanic ID that worked on your car (if we keep asking, the id is not valid):");
+                mid = ReadMechanicId(esql);
+                CloseServiceRequest(esql, rid, mid);
+        }
+
+        //asks for a mechanic id until it is one of a mechanic
+        private static int ReadMechanicId(MechanicShop esql) throws SQLException{
+                int mid = readChoice(esql);
+                while(!(esql.getKeyIndex().mayHaveMechanic(mid) && esql.getEntityCache().getMechanic(esql, mid) != null)){
+                        esql.out.println("That is not a mechanic id, try again:");
+                        mid = readChoice(esql);
                 }
+                return mid;
+        }
 
-                //checks the rows of Closed Requests and automatically assigns a WID
-                int wid = esql.executeQuery("SELECT * FROM Closed_Request;");
-                wid = wid + 1;
+        //closes a request once it is known which one and who worked on it
+        public static void CloseServiceRequest(MechanicShop esql, int rid, int mid) throws SQLException{
+                //takes the next WID from the closed request key sequence
+                int wid = esql.closedKeys.nextKey();
 
                 //recieves date and checks if it is valid
                 boolean NOdate = true;
                 String currdate = "";
                 while(NOdate){
-                        System.out.println("What is the date (MUST BE IN FORMAT month-day-year)?");
+                        esql.out.println("What is the date (MUST BE IN FORMAT month-day-year)?");
                         try{
-                                currdate = in.readLine();
+                                currdate = esql.in.readLine();
                         }catch(Exception e9){
-                                System.out.println("Invalid input");
+                                esql.out.println("Invalid input");
 
                         }
                         if(currdate.charAt(2) == '-' && currdate.charAt(5) == '-' && currdate.length() == 10){
@@ -594,65 +1449,236 @@ public class MechanicShop{
                 }
 		
 		//Recieves any closing comments
-                System.out.println("Any comments?");
+                esql.out.println("Any comments?");
                 String comment = "";
                 try{
-                                comment = in.readLine();
+                                comment = esql.in.readLine();
                 }catch(Exception e9){
-                                System.out.println("Invalid input");
+                                esql.out.println("Invalid input");
 
                 }
 
                 //Asks for final bill
-                System.out.println("what is the bill (MUST BE DIGITS)?");
-                int bill = readChoice();
+                esql.out.println("what is the bill (MUST BE DIGITS)?");
+                int bill = readChoice(esql);
 
-                //executes SQL statements 
-                esql.executeUpdate("INSERT INTO Closed_Request VALUES("+wid+"," + rid + "," + mid + ",'" +currdate + "','" + comment + "', " + bill + ")");
-                esql.executeQueryAndPrintResult("SELECT * FROM Closed_Request WHERE (wid = " + wid + ")");
+                //one call checks the ids, inserts the closed request, updates the customer's billing rollup and returns the new row
+                esql.printResult(esql.executeQueryAndReturnColumns(CLOSE_REQUEST_SQL, wid, rid, mid, currdate, comment, bill));
 
         }
 	
 	// List date, comment, and bill for all closed requests with bill lower than 100
+	// reads the Customer_Bill rollup, a range scan on its total_bill index
 	// written by Raajitha Rajkumar
 	public static void ListCustomersWithBillLessThan100(MechanicShop esql) throws SQLException{//6
-		esql.executeQueryAndPrintResult("SELECT C.id, C.fname, SUM(CR.bill) FROM Customer C, Closed_Request CR, Service_Request SR WHERE CR.rid = SR.rid AND SR.customer_id = C.id GROUP BY C.id HAVING SUM(CR.bill) < 100");
+		BrowseReport(esql, 6, readDateRange(esql));
+	}
+
+	//with a date range the bills are added up from the closed requests of those months only
+	public static void ListCustomersWithBillLessThan100(MechanicShop esql, String[] range) throws SQLException{
+		if(range == null)
+			esql.executeQueryAndPrintResult(REPORT_6_SQL);
+		else
+			esql.executeQueryAndPrintResult(REPORT_6_RANGE_SQL, range[0], range[1]);
 	}
 	
 	//written by Matthew Walsh
 	public static void ListCustomersWithMoreThan20Cars(MechanicShop esql) throws SQLException{//7
-		esql.executeQueryAndPrintResult("SELECT C.make, C.model, C.year FROM Car C, Service_Request SR WHERE C.year <= 1995 AND C.vin = SR.car_vin AND SR.odometer < 50000 GROUP BY C.vin");
+		BrowseReport(esql, 8, readDateRange(esql));
 	}
 	
 	//List Make, Model, and Year of all cars build before 1995 having less than 50000 miles
 	//written by Raajitha Rajkumar
 	public static void ListCarsBefore1995With50000Milles(MechanicShop esql) throws SQLException{//8
-		esql.executeQueryAndPrintResult("SELECT C.make, C.model, C.year FROM Car C, Service_Request SR WHERE C.year <= 1995 AND C.vin = SR.car_vin AND SR.odometer < 50000 GROUP BY C.vin");
+		BrowseReport(esql, 8, readDateRange(esql));
+	}
+
+	public static void ListCarsBefore1995With50000Milles(MechanicShop esql, String[] range) throws SQLException{
+		if(range == null)
+			esql.executeQueryAndPrintResult(REPORT_8_SQL);
+		else
+			esql.executeQueryAndPrintResult(REPORT_8_RANGE_SQL, range[0], range[1]);
 	}
 	
+	//List the K cars with the most service requests, ties broken by vin
+	//reads the first K entries of the Car_Service_Count index, so the cost depends on K only
 	//written by Matthew Walsh
 	public static void ListKCarsWithTheMostServices(MechanicShop esql)throws SQLException{//9
-                System.out.println("Enter minimum number of services: ");
-                int k;
-                String k_s = "";
-                try{
-                                k_s = in.readLine();
-                }catch(Exception e1){
-                                System.out.println("Invalid input");
-
+                esql.out.println("How many cars (K)?");
+                int k = readChoice(esql);
+                while(k < 1){
+                        esql.out.println("K must be at least 1");
+                        k = readChoice(esql);
                 }
-                k = Integer.parseInt(k_s);
-                esql.executeQueryAndPrintResult("SELECT CAR.make, CAR.model, COUNT(SR.rid) FROM Car CAR, Service_Request SR WHERE CAR.vin = SR.car_vin GROUP BY CAR.vin HAVING COUNT(SR.rid) > " + k);
-		
-		
+                ListKCarsWithTheMostServices(esql, k, readDateRange(esql));
+	}
+
+	public static void ListKCarsWithTheMostServices(MechanicShop esql, int k)throws SQLException{
+                ListKCarsWithTheMostServices(esql, k, null);
+	}
+
+	//with a date range the requests of those months are counted instead of reading the rollup
+	public static void ListKCarsWithTheMostServices(MechanicShop esql, int k, String[] range)throws SQLException{
+                if(range == null)
+                        esql.executeQueryAndPrintResult(REPORT_9_SQL, k);
+                else
+                        esql.executeQueryAndPrintResult(REPORT_9_RANGE_SQL, range[0], range[1], k);
 	}
 	
 	//List the first name, last name and total bill of customers in descending order of
 	//their total bill for all cars brought to the mechanic
+	//reads the Customer_Bill rollup in total_bill index order
 	//written by Raajitha Rajkumar
 	public static void ListCustomersInDescendingOrderOfTheirTotalBill(MechanicShop esql) throws SQLException{//10
-		esql.executeQueryAndPrintResult("SELECT C.fname, C.lname, SUM(CR.bill) FROM Customer C, Closed_Request CR, Service_Request SR WHERE CR.rid = SR.rid AND SR.customer_id = C.id GROUP BY C.id ORDER BY SUM(CR.bill) DESC");
-		
+		BrowseReport(esql, 10, readDateRange(esql));
+	}
+
+	public static void ListCustomersInDescendingOrderOfTheirTotalBill(MechanicShop esql, String[] range) throws SQLException{
+		if(range == null)
+			esql.executeQueryAndPrintResult(REPORT_10_SQL);
+		else
+			esql.executeQueryAndPrintResult(REPORT_10_RANGE_SQL, range[0], range[1]);
+	}
+
+	//Shows report 6, 8 or 10 a page at a time, the pages are found by the report's sort key
+	//the menu pages the reports, the dashboard and batch mode print them whole
+	public static void BrowseReport(MechanicShop esql, int report, String[] range) throws SQLException{
+		String[] byBill = { "total_bill", "id" };
+		String[] byVin = { "vin" };
+		KeysetPager pager;
+		if(range == null){
+			switch(report){
+				case 6: pager = new KeysetPager(esql, REPORT_6_PAGE_SQL, 3, byBill, false, KeysetPager.DEFAULT_PAGE_SIZE); break;
+				case 10: pager = new KeysetPager(esql, REPORT_10_PAGE_SQL, 3, byBill, true, KeysetPager.DEFAULT_PAGE_SIZE); break;
+				default: pager = new KeysetPager(esql, REPORT_8_PAGE_SQL, 3, byVin, false, KeysetPager.DEFAULT_PAGE_SIZE);
+			}
+		}else{
+			switch(report){
+				case 6: pager = new KeysetPager(esql, REPORT_6_RANGE_PAGE_SQL, 3, byBill, RANGE_BILL_KEYS, false, KeysetPager.DEFAULT_PAGE_SIZE, range[0], range[1]); break;
+				case 10: pager = new KeysetPager(esql, REPORT_10_RANGE_PAGE_SQL, 3, byBill, RANGE_BILL_KEYS, true, KeysetPager.DEFAULT_PAGE_SIZE, range[0], range[1]); break;
+				default: pager = new KeysetPager(esql, REPORT_8_RANGE_PAGE_SQL, 3, byVin, RANGE_VIN_KEYS, false, KeysetPager.DEFAULT_PAGE_SIZE, range[0], range[1]);
+			}
+		}
+		pager.browse();
+	}
+
+	//Gives a mechanic the oldest waiting request, highest odometer first, and closes it if the work is done
+	//claims skip requests another desk is claiming at the same moment, so desks never wait on each other
+	public static void NextJob(MechanicShop esql) throws SQLException{//14
+                esql.out.println("Enter your Mechanic ID:");
+                int mid = ReadMechanicId(esql);
+                ColumnarResult job = esql.executeQueryAndReturnColumns(CLAIM_NEXT_SQL, mid);
+                if(job.getRowCount() == 0){
+                        esql.out.println("No open requests are waiting.");
+                        return;
+                }
+                esql.printResult(job);
+                int rid = job.getInt(0, 0);
+                esql.out.println("Is the work done (yes to close it, release to put it back, anything else to keep working on it)?");
+                String answer = readLine(esql);
+                if(answer.equals("yes")){
+                        CloseServiceRequest(esql, rid, mid);
+                }else if(answer.equals("release")){
+                        esql.executeUpdate(RELEASE_JOB_SQL, rid);
+                        esql.out.println("Request " + rid + " is waiting again.");
+                }else{
+                        esql.out.println("Request " + rid + " stays with mechanic " + mid + ".");
+                }
+	}
+
+	//Closes many requests at once, typed here or read from a file, e.g. at the end of a shift
+	//they are checked with one query and inserted in batches, rows that fail are reported and skipped
+	public static void CloseServiceRequests(MechanicShop esql) throws SQLException{//15
+                esql.out.println("File with one rid|mechanic id|date|comment|bill per line (blank to type them here):");
+                String file = readLine(esql);
+                try{
+                        if(file.isEmpty()){
+                                esql.out.println("Enter one rid|mechanic id|date|comment|bill per line, a blank line to finish:");
+                                new BulkCloser(esql).run(esql.in, true);
+                        }else{
+                                BufferedReader reader = new BufferedReader(new FileReader(file));
+                                try{
+                                        new BulkCloser(esql).run(reader, false);
+                                }finally{
+                                        reader.close();
+                                }
+                        }
+                }catch(IOException e){
+                        esql.out.println("Could not read " + file + ": " + e.getMessage());
+                }
+	}
+
+	//Revenue, jobs and average bill by month, by mechanic, by car make or all three, for all time or some months
+	//reads the Revenue_Cube rollup, which has one row per month, mechanic and make, not the closed history
+	public static void RevenueReport(MechanicShop esql) throws SQLException{//16
+                esql.out.println("Revenue by 1. month, 2. mechanic, 3. car make or 4. month, mechanic and make?");
+                int by = readChoice(esql);
+                while(by < 1 || by > 4){
+                        esql.out.println("Choose 1 to 4");
+                        by = readChoice(esql);
+                }
+                String[] range = readDateRange(esql);
+                RevenueReport(esql, by, range);
+	}
+
+	public static void RevenueReport(MechanicShop esql, int by, String[] range) throws SQLException{
+		if(range == null)
+			range = new String[]{ "-infinity", "infinity" };
+		switch(by){
+			case 1: esql.executeQueryAndPrintResult(REVENUE_BY_MONTH_SQL, range[0], range[1]); break;
+			case 2: esql.executeQueryAndPrintResult(REVENUE_BY_MECHANIC_SQL, range[0], range[1]); break;
+			case 3: esql.executeQueryAndPrintResult(REVENUE_BY_MAKE_SQL, range[0], range[1]); break;
+			default: esql.executeQueryAndPrintResult(REVENUE_CUBE_SQL, range[0], range[1]);
+		}
+	}
+
+	//Shows any table a page at a time in primary key order
+	public static void BrowseTable(MechanicShop esql) throws SQLException{//13
+                esql.out.println("Which table (" + String.join(", ", ReportExporter.TABLES) + ")?");
+                KeysetPager pager = KeysetPager.forTable(esql, readLine(esql));
+                while(pager == null){
+                        esql.out.println("No such table, try again:");
+                        pager = KeysetPager.forTable(esql, readLine(esql));
+                }
+                pager.browse();
+	}
+
+	//Asks for the dates a report covers, both included
+	//returns null for all time, so the report can read its rollup
+	public static String[] readDateRange(MechanicShop esql){
+                esql.out.println("From date (blank for all time):");
+                String from = readLine(esql);
+                if(from.isEmpty())
+                        return null;
+                esql.out.println("To date (blank for today):");
+                String to = readLine(esql);
+                return new String[]{ from, to.isEmpty() ? "today" : to };
+	}
+
+	private static String readLine(MechanicShop esql){
+                try{
+                        String line = esql.in.readLine();
+                        if(line == null)
+                                throw new IllegalStateException("Input closed");
+                        return line.trim();
+                }catch(IOException e){
+                        esql.out.println("Invalid input");
+                        return "";
+                }
+	}
+
+	//Runs reports 6 to 10 at the same time on their own connections and shows
+	//each one as soon as it is done
+	public static void ReportDashboard(MechanicShop esql) throws SQLException{//12
+                esql.out.println("How many cars (K) for report 9?");
+                int k = readChoice(esql);
+                while(k < 1){
+                        esql.out.println("K must be at least 1");
+                        k = readChoice(esql);
+                }
+                String[] range = readDateRange(esql);
+                long timeout = Long.getLong("mechanicshop.dashboard.timeout", ReportDashboard.DEFAULT_TIMEOUT_SECONDS);
+                new ReportDashboard(esql, timeout).run(k, range);
 	}
 	
 }
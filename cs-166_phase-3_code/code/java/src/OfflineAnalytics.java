@@ -0,0 +1,626 @@
+/*
+ * Offline analytics over the MechanicShop CSV snapshots
+ * =====================================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class computes reports 6 to 10 from the CSV files in data/ instead of
+ * the database, for historical analysis that should not load the server.
+ *
+ * Each file is memory mapped and cut into chunks that are parsed on all
+ * cores.  Fields are read straight from the mapped bytes into primitive
+ * columns; only the names and VINs a report prints become Strings.  The VIN
+ * of a service request is resolved to its car with a hash table probed on
+ * the mapped bytes, and the other joins use the dense integer keys as array
+ * indexes.  Aggregations run on slices of the rows in parallel, one partial
+ * array per slice, and the partials are added up at the end.
+ *
+ * check compares every report with the SQL the menu runs, which is only
+ * meaningful while the database holds the same data as the snapshot (e.g.
+ * right after "load").  owns.csv and mechanic.csv are not read, since no
+ * report uses them.
+ *
+ */
+
+public class OfflineAnalytics{
+	//bytes per parse task; a chunk also maps up to MAX_LINE bytes past its end to finish its last line
+	private static final long CHUNK_SIZE = Long.getLong("mechanicshop.analytics.chunkSize", 8L << 20);
+	private static final int MAX_LINE = 1 << 16;
+
+	//how a CSV field is read
+	static final byte SKIP = 0;
+	static final byte INT = 1;
+	static final byte TEXT = 2;
+	//a VIN, read as the row of that car
+	static final byte CAR = 3;
+
+	/**
+	 * One CSV file, or one chunk of it, read into columns.  Only the
+	 * columns of the matching kind are set.
+	 */
+	static class Table{
+		final int[][] ints;
+		final String[][] texts;
+		int rows = 0;
+
+		Table(byte[] kinds, int capacity){
+			ints = new int[kinds.length][];
+			texts = new String[kinds.length][];
+			for(int i = 0; i < kinds.length; ++i){
+				if(kinds[i] == INT || kinds[i] == CAR) ints[i] = new int[capacity];
+				if(kinds[i] == TEXT) texts[i] = new String[capacity];
+			}
+		}
+
+		void grow(){
+			for(int i = 0; i < ints.length; ++i){
+				if(ints[i] != null && rows == ints[i].length) ints[i] = Arrays.copyOf(ints[i], rows * 2);
+				if(texts[i] != null && rows == texts[i].length) texts[i] = Arrays.copyOf(texts[i], rows * 2);
+			}
+		}
+	}//end Table
+
+	/**
+	 * Open addressing hash table from VIN to car row, probed with the bytes
+	 * of a mapped file so looking up a service request's car allocates
+	 * nothing.
+	 */
+	static class CarIndex{
+		private final byte[][] vins;
+		private final int[] slots;
+
+		CarIndex(String[] vins, int rows) throws IOException {
+			this.vins = new byte[rows][];
+			this.slots = new int[Integer.highestOneBit(Math.max(rows, 1) * 2) * 2];
+			Arrays.fill(slots, -1);
+			for(int row = 0; row < rows; ++row){
+				this.vins[row] = vins[row].getBytes(StandardCharsets.UTF_8);
+				int slot = hash(this.vins[row], 0, this.vins[row].length) & (slots.length - 1);
+				while(slots[slot] != -1){
+					if(Arrays.equals(this.vins[slots[slot]], this.vins[row])){
+						throw new IOException("car.csv: duplicate VIN " + vins[row]);
+					}
+					slot = (slot + 1) & (slots.length - 1);
+				}
+				slots[slot] = row;
+			}
+		}
+
+		/**
+		 * @return the row of the car whose VIN is in buf[start, end), -1 if there is none
+		 */
+		int find(MappedByteBuffer buf, int start, int end){
+			int length = end - start;
+			int h = -2128831035;
+			for(int i = start; i < end; ++i){
+				h = (h ^ buf.get(i)) * 16777619;
+			}
+			for(int slot = h & (slots.length - 1); slots[slot] != -1; slot = (slot + 1) & (slots.length - 1)){
+				byte[] vin = vins[slots[slot]];
+				if(vin.length != length){
+					continue;
+				}
+				int i = 0;
+				while(i < length && vin[i] == buf.get(start + i)){
+					++i;
+				}
+				if(i == length){
+					return slots[slot];
+				}
+			}
+			return -1;
+		}
+
+		//FNV-1a, the same as find computes on the mapped bytes
+		private static int hash(byte[] bytes, int start, int end){
+			int h = -2128831035;
+			for(int i = start; i < end; ++i){
+				h = (h ^ bytes[i]) * 16777619;
+			}
+			return h;
+		}
+	}//end CarIndex
+
+	private final ExecutorService workers;
+	private final int parallelism;
+
+	//car.csv: vin, make, model, year
+	private Table car;
+	//customer.csv: id, fname, lname
+	private Table customer;
+	//service_request.csv: rid, customer_id, car row, odometer
+	private Table request;
+	//closed_request.csv: rid, bill
+	private Table closed;
+
+	//per customer row: total bill and closed requests
+	private long[] bills;
+	private int[] closedCounts;
+	//per car row: service requests, and whether one had an odometer under 50000
+	private int[] serviceCounts;
+	private BitSet lowMileage;
+
+	private OfflineAnalytics(ExecutorService workers, int parallelism){
+		this.workers = workers;
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Method to read a snapshot and compute the aggregates of every report.
+	 *
+	 * @param dataDir the directory holding the CSV files
+	 * @param out where to print the timings
+	 * @return the analytics, ready for the reports
+	 * @throws java.io.IOException when a file could not be read or has a bad line
+	 */
+	public static OfflineAnalytics load(File dataDir, PrintStream out) throws IOException {
+		int parallelism = Runtime.getRuntime().availableProcessors();
+		ExecutorService workers = Executors.newFixedThreadPool(parallelism);
+		try{
+			OfflineAnalytics analytics = new OfflineAnalytics(workers, parallelism);
+			long start = System.nanoTime();
+			analytics.car = analytics.read(new File(dataDir, "car.csv"), new byte[]{ TEXT, TEXT, TEXT, INT }, null);
+			CarIndex cars = new CarIndex(analytics.car.texts[0], analytics.car.rows);
+			analytics.customer = analytics.read(new File(dataDir, "customer.csv"), new byte[]{ INT, TEXT, TEXT }, null);
+			analytics.request = analytics.read(new File(dataDir, "service_request.csv"), new byte[]{ INT, INT, CAR, SKIP, INT }, cars);
+			analytics.closed = analytics.read(new File(dataDir, "closed_request.csv"), new byte[]{ SKIP, INT, SKIP, SKIP, SKIP, INT }, null);
+			long parsed = System.nanoTime();
+			analytics.aggregate();
+			long done = System.nanoTime();
+			out.println(String.format("Read %d cars, %d customers, %d requests, %d closed requests in %d ms, aggregated in %d ms on %d cores",
+				analytics.car.rows, analytics.customer.rows, analytics.request.rows, analytics.closed.rows,
+				(parsed - start) / 1000000, (done - parsed) / 1000000, parallelism));
+			return analytics;
+		}finally{
+			workers.shutdown();
+		}
+	}
+
+	/**
+	 * Report 6: id, first name and total bill of the customers billed less than 100.
+	 */
+	public List<List<String>> customersWithBillLessThan100(){
+		List<Integer> rows = new ArrayList<Integer>();
+		for(int row = 0; row < customer.rows; ++row){
+			if(closedCounts[row] > 0 && bills[row] < 100){
+				rows.add(row);
+			}
+		}
+		Collections.sort(rows, byBill(false));
+		List<List<String>> result = new ArrayList<List<String>>();
+		for(int row : rows){
+			result.add(Arrays.asList(String.valueOf(customer.ints[0][row]), customer.texts[1][row], String.valueOf(bills[row])));
+		}
+		return result;
+	}
+
+	/**
+	 * Reports 7 and 8: make, model and year of the cars built in 1995 or
+	 * before that came in with less than 50000 miles.
+	 */
+	public List<List<String>> carsBefore1995With50000Miles(){
+		List<List<String>> result = new ArrayList<List<String>>();
+		for(int row = lowMileage.nextSetBit(0); row >= 0; row = lowMileage.nextSetBit(row + 1)){
+			if(car.ints[3][row] <= 1995){
+				result.add(Arrays.asList(car.texts[1][row], car.texts[2][row], String.valueOf(car.ints[3][row])));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Report 9: vin, make, model and service count of the k cars with the
+	 * most service requests, ties broken by vin.
+	 */
+	public List<List<String>> kCarsWithTheMostServices(int k){
+		//the heap keeps the k best cars seen so far, worst on top
+		Comparator<Integer> best = new Comparator<Integer>(){
+			public int compare(Integer a, Integer b){
+				if(serviceCounts[a] != serviceCounts[b]){
+					return serviceCounts[a] > serviceCounts[b] ? -1 : 1;
+				}
+				return car.texts[0][a].compareTo(car.texts[0][b]);
+			}
+		};
+		PriorityQueue<Integer> top = new PriorityQueue<Integer>(Math.max(k, 1), Collections.reverseOrder(best));
+		for(int row = 0; row < car.rows; ++row){
+			if(serviceCounts[row] == 0){
+				continue;
+			}
+			top.add(row);
+			if(top.size() > k){
+				top.poll();
+			}
+		}
+		List<Integer> rows = new ArrayList<Integer>(top);
+		Collections.sort(rows, best);
+		List<List<String>> result = new ArrayList<List<String>>();
+		for(int row : rows){
+			result.add(Arrays.asList(car.texts[0][row], car.texts[1][row], car.texts[2][row], String.valueOf(serviceCounts[row])));
+		}
+		return result;
+	}
+
+	/**
+	 * Report 10: first name, last name and total bill of every billed
+	 * customer, highest bill first.
+	 */
+	public List<List<String>> customersByTotalBill(){
+		List<Integer> rows = new ArrayList<Integer>();
+		for(int row = 0; row < customer.rows; ++row){
+			if(closedCounts[row] > 0){
+				rows.add(row);
+			}
+		}
+		Collections.sort(rows, byBill(true));
+		List<List<String>> result = new ArrayList<List<String>>();
+		for(int row : rows){
+			result.add(Arrays.asList(customer.texts[1][row], customer.texts[2][row], String.valueOf(bills[row])));
+		}
+		return result;
+	}
+
+	/**
+	 * Method to run every report offline and in the database and print
+	 * whether they agree.  Reports whose SQL leaves ties unordered are
+	 * compared as sets of rows.
+	 *
+	 * @param esql a session with a connection to a database loaded from the same snapshot
+	 * @param k how many cars report 9 lists
+	 * @return true if every report matched
+	 * @throws java.sql.SQLException when a query failed
+	 */
+	public boolean check(MechanicShop esql, int k) throws SQLException {
+		boolean same = compare(esql.out, "6", customersWithBillLessThan100(),
+			esql.executeQueryAndReturnResult(MechanicShop.REPORT_6_SQL), false);
+		same &= compare(esql.out, "7 and 8", carsBefore1995With50000Miles(),
+			esql.executeQueryAndReturnResult(MechanicShop.REPORT_8_SQL), false);
+		same &= compare(esql.out, "9", kCarsWithTheMostServices(k),
+			esql.executeQueryAndReturnResult(MechanicShop.REPORT_9_SQL, k), true);
+		same &= compare(esql.out, "10", customersByTotalBill(),
+			esql.executeQueryAndReturnResult(MechanicShop.REPORT_10_SQL), false);
+		return same;
+	}
+
+	private static boolean compare(PrintStream out, String report, List<List<String>> offline, List<List<String>> sql, boolean ordered){
+		List<String> a = joinRows(offline);
+		List<String> b = joinRows(sql);
+		if(!ordered){
+			Collections.sort(a);
+			Collections.sort(b);
+		}
+		for(int i = 0; i < Math.min(a.size(), b.size()); ++i){
+			if(!a.get(i).equals(b.get(i))){
+				out.println("Report " + report + ": DIFFERENT, row " + (i + 1) + " is [" + a.get(i) + "] offline and [" + b.get(i) + "] in SQL");
+				return false;
+			}
+		}
+		if(a.size() != b.size()){
+			out.println("Report " + report + ": DIFFERENT, " + a.size() + " rows offline and " + b.size() + " in SQL");
+			return false;
+		}
+		out.println("Report " + report + ": same " + a.size() + " rows offline and in SQL");
+		return true;
+	}
+
+	//SQL pads CHAR columns and COPY keeps the blanks around a field, so values are compared trimmed
+	private static List<String> joinRows(List<List<String>> rows){
+		List<String> joined = new ArrayList<String>(rows.size());
+		StringBuilder line = new StringBuilder();
+		for(List<String> row : rows){
+			line.setLength(0);
+			for(String value : row){
+				line.append(value == null ? "null" : value.trim()).append('|');
+			}
+			joined.add(line.toString());
+		}
+		return joined;
+	}
+
+	private Comparator<Integer> byBill(final boolean descending){
+		return new Comparator<Integer>(){
+			public int compare(Integer a, Integer b){
+				int order = descending ? Long.compare(bills[b], bills[a]) : Long.compare(bills[a], bills[b]);
+				return order != 0 ? order : Integer.compare(customer.ints[0][a], customer.ints[0][b]);
+			}
+		};
+	}
+
+	/**
+	 * Method to join the tables and add up the bills and service counts,
+	 * each on slices of the rows in parallel.
+	 */
+	private void aggregate() throws IOException {
+		final int[] customerRow = rowsByKey("customer.csv", customer.ints[0], customer.rows);
+		final int[] requestRow = rowsByKey("service_request.csv", request.ints[0], request.rows);
+		final int customers = customer.rows;
+		final int cars = car.rows;
+
+		//bills: closed request -> service request -> customer
+		List<Callable<Object[]>> billSlices = new ArrayList<Callable<Object[]>>();
+		for(final int[] slice : slices(closed.rows)){
+			billSlices.add(new Callable<Object[]>(){
+				public Object[] call() throws IOException {
+					long[] total = new long[customers];
+					int[] count = new int[customers];
+					for(int i = slice[0]; i < slice[1]; ++i){
+						int rid = closed.ints[1][i];
+						int req = rid >= 0 && rid < requestRow.length ? requestRow[rid] : -1;
+						if(req < 0){
+							throw new IOException("closed_request.csv: unknown rid " + rid);
+						}
+						int id = request.ints[1][req];
+						int row = id >= 0 && id < customerRow.length ? customerRow[id] : -1;
+						if(row < 0){
+							throw new IOException("service_request.csv: unknown customer " + id);
+						}
+						total[row] += closed.ints[5][i];
+						count[row]++;
+					}
+					return new Object[]{ total, count };
+				}
+			});
+		}
+		//service counts: service request -> car, already resolved while parsing
+		List<Callable<Object[]>> carSlices = new ArrayList<Callable<Object[]>>();
+		for(final int[] slice : slices(request.rows)){
+			carSlices.add(new Callable<Object[]>(){
+				public Object[] call(){
+					int[] count = new int[cars];
+					BitSet low = new BitSet(cars);
+					for(int i = slice[0]; i < slice[1]; ++i){
+						int row = request.ints[2][i];
+						count[row]++;
+						if(request.ints[4][i] < 50000){
+							low.set(row);
+						}
+					}
+					return new Object[]{ count, low };
+				}
+			});
+		}
+		List<Future<Object[]>> billParts = submitAll(billSlices);
+		List<Future<Object[]>> carParts = submitAll(carSlices);
+
+		bills = new long[customers];
+		closedCounts = new int[customers];
+		for(Future<Object[]> part : billParts){
+			Object[] partial = await(part);
+			long[] total = (long[]) partial[0];
+			int[] count = (int[]) partial[1];
+			for(int row = 0; row < customers; ++row){
+				bills[row] += total[row];
+				closedCounts[row] += count[row];
+			}
+		}
+		serviceCounts = new int[cars];
+		lowMileage = new BitSet(cars);
+		for(Future<Object[]> part : carParts){
+			Object[] partial = await(part);
+			int[] count = (int[]) partial[0];
+			for(int row = 0; row < cars; ++row){
+				serviceCounts[row] += count[row];
+			}
+			lowMileage.or((BitSet) partial[1]);
+		}
+	}
+
+	/**
+	 * @return for every key, the row holding it or -1; keys come from sequences, so they are dense
+	 */
+	private static int[] rowsByKey(String file, int[] keys, int rows) throws IOException {
+		int max = -1;
+		for(int row = 0; row < rows; ++row){
+			if(keys[row] < 0){
+				throw new IOException(file + ": negative key " + keys[row]);
+			}
+			max = Math.max(max, keys[row]);
+		}
+		int[] index = new int[max + 1];
+		Arrays.fill(index, -1);
+		for(int row = 0; row < rows; ++row){
+			if(index[keys[row]] != -1){
+				throw new IOException(file + ": duplicate key " + keys[row]);
+			}
+			index[keys[row]] = row;
+		}
+		return index;
+	}
+
+	/**
+	 * @return about one [from, to) range of rows per core
+	 */
+	private List<int[]> slices(int rows){
+		List<int[]> slices = new ArrayList<int[]>();
+		int size = Math.max(1, (rows + parallelism - 1) / parallelism);
+		for(int from = 0; from < rows; from += size){
+			slices.add(new int[]{ from, Math.min(rows, from + size) });
+		}
+		return slices;
+	}
+
+	/**
+	 * Method to read a CSV file into columns, one chunk per task.
+	 */
+	private Table read(File file, final byte[] kinds, final CarIndex cars) throws IOException {
+		final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try{
+			final long size = channel.size();
+			final String name = file.getName();
+			List<Callable<Table>> chunks = new ArrayList<Callable<Table>>();
+			for(long from = 0; from == 0 || from < size; from += CHUNK_SIZE){
+				final long start = from;
+				final long end = Math.min(size, from + CHUNK_SIZE);
+				chunks.add(new Callable<Table>(){
+					public Table call() throws IOException {
+						return readChunk(name, channel, size, start, end, kinds, cars);
+					}
+				});
+			}
+			List<Table> parts = new ArrayList<Table>();
+			for(Future<Table> chunk : submitAll(chunks)){
+				parts.add(await(chunk));
+			}
+
+			//the chunks in file order make the table
+			int rows = 0;
+			for(Table part : parts){
+				rows += part.rows;
+			}
+			Table table = new Table(kinds, rows);
+			for(Table part : parts){
+				for(int i = 0; i < kinds.length; ++i){
+					if(table.ints[i] != null) System.arraycopy(part.ints[i], 0, table.ints[i], table.rows, part.rows);
+					if(table.texts[i] != null) System.arraycopy(part.texts[i], 0, table.texts[i], table.rows, part.rows);
+				}
+				table.rows += part.rows;
+			}
+			return table;
+		}finally{
+			channel.close();
+		}
+	}
+
+	/**
+	 * Method to read the lines that start in [start, end) of a file.
+	 */
+	private static Table readChunk(String name, FileChannel channel, long size, long start, long end, byte[] kinds, CarIndex cars) throws IOException {
+		//maps one byte before the chunk to see whether it starts on a line, and enough after it to end its last line
+		long mapStart = start > 0 ? start - 1 : 0;
+		long mapEnd = Math.min(size, end + MAX_LINE);
+		MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, mapStart, mapEnd - mapStart);
+		int limit = buf.limit();
+		int stop = (int) (end - mapStart);
+		int pos = 0;
+		if(start > 0){
+			//the line that began in the previous chunk is read there
+			while(pos < limit && buf.get(pos) != '\n'){
+				++pos;
+			}
+			++pos;
+		}
+
+		Table table = new Table(kinds, 1024);
+		byte[] text = new byte[MAX_LINE];
+		while(pos < stop){
+			int lineEnd = pos;
+			while(lineEnd < limit && buf.get(lineEnd) != '\n'){
+				++lineEnd;
+			}
+			if(lineEnd == limit && mapEnd < size){
+				throw new IOException(name + ": line at byte " + (mapStart + pos) + " is longer than " + MAX_LINE + " bytes");
+			}
+			int next = lineEnd + 1;
+			if(lineEnd > pos && buf.get(lineEnd - 1) == '\r'){
+				--lineEnd;
+			}
+			if(lineEnd > pos){
+				table.grow();
+				int field = 0;
+				int from = pos;
+				for(int i = pos; i <= lineEnd; ++i){
+					if(i < lineEnd && buf.get(i) != ','){
+						continue;
+					}
+					if(field < kinds.length && kinds[field] != SKIP){
+						readField(name, buf, from, i, kinds[field], table, field, cars, text, mapStart + pos);
+					}
+					++field;
+					from = i + 1;
+				}
+				if(field < kinds.length){
+					throw new IOException(name + ": line at byte " + (mapStart + pos) + " has " + field + " fields, expected " + kinds.length);
+				}
+				table.rows++;
+			}
+			pos = next;
+		}
+		return table;
+	}
+
+	private static void readField(String name, MappedByteBuffer buf, int from, int to, byte kind, Table table, int field, CarIndex cars, byte[] text, long line) throws IOException {
+		while(from < to && buf.get(from) == ' '){
+			++from;
+		}
+		while(to > from && buf.get(to - 1) == ' '){
+			--to;
+		}
+		if(kind == INT){
+			boolean negative = from < to && buf.get(from) == '-';
+			int i = negative ? from + 1 : from;
+			if(i == to){
+				throw new IOException(name + ": line at byte " + line + " has an empty number in field " + (field + 1));
+			}
+			long value = 0;
+			for(; i < to; ++i){
+				int digit = buf.get(i) - '0';
+				if(digit < 0 || digit > 9 || value > Integer.MAX_VALUE){
+					throw new IOException(name + ": line at byte " + line + " has a bad number in field " + (field + 1));
+				}
+				value = value * 10 + digit;
+			}
+			if(value > Integer.MAX_VALUE){
+				throw new IOException(name + ": line at byte " + line + " has a bad number in field " + (field + 1));
+			}
+			table.ints[field][table.rows] = (int) (negative ? -value : value);
+		}else if(kind == CAR){
+			int row = cars.find(buf, from, to);
+			if(row < 0){
+				throw new IOException(name + ": line at byte " + line + " refers to an unknown car");
+			}
+			table.ints[field][table.rows] = row;
+		}else{
+			for(int i = from; i < to; ++i){
+				text[i - from] = buf.get(i);
+			}
+			table.texts[field][table.rows] = new String(text, 0, to - from, StandardCharsets.UTF_8);
+		}
+	}
+
+	private <T> List<Future<T>> submitAll(List<Callable<T>> tasks){
+		List<Future<T>> futures = new ArrayList<Future<T>>();
+		for(Callable<T> task : tasks){
+			futures.add(workers.submit(task));
+		}
+		return futures;
+	}
+
+	private static <T> T await(Future<T> future) throws IOException {
+		try{
+			return future.get();
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted");
+		}catch(ExecutionException e){
+			if(e.getCause() instanceof IOException){
+				throw (IOException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+}//end OfflineAnalytics
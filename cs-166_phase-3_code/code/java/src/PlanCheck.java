@@ -0,0 +1,251 @@
+/*
+ * Query plan regression check for MechanicShop
+ * ============================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This class asks the server how it would run each query the desks wait
+ * on, with EXPLAIN (FORMAT JSON), and fails a query whose plan reads a
+ * table it should find through an index with a sequential scan, or joins
+ * with a hash join where it should look up the few rows it needs.  A query
+ * over a date range also fails when it reads a month partition outside the
+ * range.  Nothing is executed.
+ *
+ * The planner rightly reads small tables whole, so run it against a data set
+ * of scale 10 or more (see DataGenerator), after the load has analyzed it.
+ *
+ */
+
+public class PlanCheck{
+	//"Node Type" comes first in every plan node, "Relation Name" follows for scans
+	private static final Pattern NODE = Pattern.compile("\"(Node Type|Relation Name)\": \"([^\"]*)\"");
+	//month and default partitions are checked as their table
+	private static final Pattern PARTITION = Pattern.compile("_(\\d{4}_\\d{2}|default)$");
+
+	//the lookups of open_service_request and close_service_request, and of the key triggers, in create.sql
+	static final String CUSTOMER_EXISTS_SQL = "SELECT 1 FROM Customer WHERE id = ?";
+	static final String CAR_EXISTS_SQL = "SELECT 1 FROM Car WHERE vin = ?";
+	static final String REQUEST_OWNER_SQL = "SELECT SR.customer_id, C.make FROM Service_Request SR, Car C WHERE SR.rid = ? AND C.vin = SR.car_vin";
+	static final String MECHANIC_EXISTS_SQL = "SELECT 1 FROM Mechanic WHERE id = ?";
+	static final String DEQUEUE_SQL = "DELETE FROM Open_Request WHERE rid = ?";
+	static final String RID_COUNT_SQL = "SELECT count(*) FROM Service_Request WHERE rid = ?";
+	static final String WID_COUNT_SQL = "SELECT count(*) FROM Closed_Request WHERE wid = ?";
+
+	/**
+	 * One query and what its plan must not do.
+	 */
+	private static class Check{
+		final String name;
+		final String sql;
+		final Object[] params;
+		final String[] indexed;
+		final String[] partitions;
+		final boolean nestedLoops;
+
+		/**
+		 * @param indexed the tables that must not be scanned sequentially, lower case
+		 * @param nestedLoops true if the plan must not have a hash join
+		 */
+		Check(String name, String sql, String[] indexed, boolean nestedLoops, Object... params){
+			this(name, sql, indexed, new String[0], nestedLoops, params);
+		}
+
+		/**
+		 * @param partitions the only partitions of their tables the plan may read, lower case
+		 */
+		Check(String name, String sql, String[] indexed, String[] partitions, boolean nestedLoops, Object... params){
+			this.name = name;
+			this.sql = sql;
+			this.params = params;
+			this.indexed = indexed;
+			this.partitions = partitions;
+			this.nestedLoops = nestedLoops;
+		}
+	}//end Check
+
+	private final MechanicShop esql;
+
+	public PlanCheck(MechanicShop esql){
+		this.esql = esql;
+	}
+
+	/**
+	 * Method to check every query and print the result of each.
+	 *
+	 * @return true if every plan is as expected
+	 * @throws java.sql.SQLException when a query could not be explained
+	 */
+	public boolean run() throws SQLException {
+		int failed = 0;
+		List<Check> checks = checks();
+		for(Check check : checks){
+			String plan = esql.executeQueryAndReturnResult("EXPLAIN (FORMAT JSON) " + check.sql, check.params).get(0).get(0);
+			List<String> problems = problems(check, plan);
+			if(problems.isEmpty()){
+				esql.out.println("ok    " + check.name);
+			}else{
+				failed++;
+				esql.out.println("FAIL  " + check.name + ": " + String.join(", ", problems));
+			}
+		}
+		esql.out.println(String.format("%d of %d plans as expected.", checks.size() - failed, checks.size()));
+		return failed == 0;
+	}
+
+	/**
+	 * @return the queries to check, with parameters taken from the data
+	 */
+	private List<Check> checks() throws SQLException {
+		List<List<String>> sample = esql.executeQueryAndReturnResult(
+			"SELECT O.customer_id, O.car_vin, (SELECT MIN(rid) FROM Service_Request), (SELECT MIN(id) FROM Mechanic), " +
+			"(SELECT MIN(wid) FROM Closed_Request), (SELECT MAX(date) FROM Service_Request), (SELECT MAX(date) FROM Closed_Request) " +
+			"FROM Owns O ORDER BY O.ownership_id LIMIT 1");
+		if(sample.isEmpty() || sample.get(0).get(4) == null){
+			throw new IllegalStateException("There is no data to check the plans with, load some first");
+		}
+		int custid = Integer.parseInt(sample.get(0).get(0));
+		String vin = sample.get(0).get(1);
+		int rid = Integer.parseInt(sample.get(0).get(2));
+		int mid = Integer.parseInt(sample.get(0).get(3));
+		int wid = Integer.parseInt(sample.get(0).get(4));
+		//the range reports are checked over the last month of requests or of closed requests
+		LocalDate requested = LocalDate.parse(sample.get(0).get(5)).withDayOfMonth(1);
+		LocalDate closed = LocalDate.parse(sample.get(0).get(6)).withDayOfMonth(1);
+		String[] requestMonth = { requested.toString(), requested.plusMonths(1).minusDays(1).toString() };
+		String[] closedMonth = { closed.toString(), closed.plusMonths(1).minusDays(1).toString() };
+		String[] requestPartition = { partition("service_request", requested) };
+		String[] closedPartition = { partition("closed_request", closed) };
+		//a page in the middle of the bill reports starts after this customer
+		String[] bill = { "50", String.valueOf(custid) };
+		String[] byBill = { "total_bill", "id" };
+		String[] billTypes = { "int8", "int4" };
+		String[] byVin = { "vin" };
+		String[] vinTypes = { "varchar" };
+		int page = KeysetPager.DEFAULT_PAGE_SIZE + 1;
+
+		String[] customer = { "customer" };
+		String[] bills = { "customer_bill", "customer" };
+		List<Check> checks = new ArrayList<Check>();
+		checks.add(new Check("customer by id", EntityCache.CUSTOMER_SQL, customer, true, custid));
+		checks.add(new Check("mechanic by id", EntityCache.MECHANIC_SQL, new String[]{ "mechanic" }, true, mid));
+		checks.add(new Check("car by vin", EntityCache.CAR_SQL, new String[]{ "car" }, true, vin));
+		checks.add(new Check("cars of a customer", EntityCache.OWNED_CARS_SQL, new String[]{ "owns", "car" }, true, custid));
+		checks.add(new Check("request by rid", MechanicShop.REQUEST_EXISTS_SQL, new String[]{ "service_request" }, true, rid));
+		checks.add(new Check("bulk close check", BulkCloser.CHECK_SQL,
+			new String[]{ "service_request", "mechanic", "closed_request" }, true, "{" + rid + "}", "{" + mid + "}"));
+		checks.add(new Check("next job", MechanicShop.CLAIM_NEXT_SQL,
+			new String[]{ "open_request", "service_request", "customer", "car" }, true, mid));
+		checks.add(new Check("report 6, first page", KeysetPager.pageQuery(MechanicShop.REPORT_6_PAGE_SQL, byBill, byBill, billTypes, false, false, false),
+			bills, true, page));
+		checks.add(new Check("report 6, next page", KeysetPager.pageQuery(MechanicShop.REPORT_6_PAGE_SQL, byBill, byBill, billTypes, false, false, true),
+			bills, true, bill[0], bill[1], page));
+		checks.add(new Check("report 8, first page", KeysetPager.pageQuery(MechanicShop.REPORT_8_PAGE_SQL, byVin, byVin, vinTypes, false, false, false),
+			new String[]{ "car", "service_request" }, true, page));
+		checks.add(new Check("report 8, next page", KeysetPager.pageQuery(MechanicShop.REPORT_8_PAGE_SQL, byVin, byVin, vinTypes, false, false, true),
+			new String[]{ "car", "service_request" }, true, vin, page));
+		checks.add(new Check("report 9", MechanicShop.REPORT_9_SQL, new String[]{ "car_service_count", "car" }, true, 10));
+		checks.add(new Check("report 10, first page", KeysetPager.pageQuery(MechanicShop.REPORT_10_PAGE_SQL, byBill, byBill, billTypes, true, false, false),
+			bills, true, page));
+		checks.add(new Check("report 10, next page", KeysetPager.pageQuery(MechanicShop.REPORT_10_PAGE_SQL, byBill, byBill, billTypes, true, false, true),
+			bills, true, bill[0], bill[1], page));
+
+		//the reports over a date range: the range reads only its months
+		String[] none = {};
+		String[] cars = { "car" };
+		checks.add(new Check("report 6 over a month, first page", KeysetPager.pageQuery(MechanicShop.REPORT_6_RANGE_PAGE_SQL, byBill, MechanicShop.RANGE_BILL_KEYS, billTypes, false, false, false),
+			none, closedPartition, false, closedMonth[0], closedMonth[1], page));
+		checks.add(new Check("report 6 over a month, next page", KeysetPager.pageQuery(MechanicShop.REPORT_6_RANGE_PAGE_SQL, byBill, MechanicShop.RANGE_BILL_KEYS, billTypes, false, false, true),
+			none, closedPartition, false, closedMonth[0], closedMonth[1], bill[0], bill[1], page));
+		checks.add(new Check("report 8 over a month, first page", KeysetPager.pageQuery(MechanicShop.REPORT_8_RANGE_PAGE_SQL, byVin, MechanicShop.RANGE_VIN_KEYS, vinTypes, false, false, false),
+			cars, requestPartition, false, requestMonth[0], requestMonth[1], page));
+		checks.add(new Check("report 8 over a month, next page", KeysetPager.pageQuery(MechanicShop.REPORT_8_RANGE_PAGE_SQL, byVin, MechanicShop.RANGE_VIN_KEYS, vinTypes, false, false, true),
+			cars, requestPartition, false, requestMonth[0], requestMonth[1], vin, page));
+		checks.add(new Check("report 9 over a month", MechanicShop.REPORT_9_RANGE_SQL, none, requestPartition, false, requestMonth[0], requestMonth[1], 10));
+		checks.add(new Check("report 10 over a month, first page", KeysetPager.pageQuery(MechanicShop.REPORT_10_RANGE_PAGE_SQL, byBill, MechanicShop.RANGE_BILL_KEYS, billTypes, true, false, false),
+			none, closedPartition, false, closedMonth[0], closedMonth[1], page));
+		checks.add(new Check("report 10 over a month, next page", KeysetPager.pageQuery(MechanicShop.REPORT_10_RANGE_PAGE_SQL, byBill, MechanicShop.RANGE_BILL_KEYS, billTypes, true, false, true),
+			none, closedPartition, false, closedMonth[0], closedMonth[1], bill[0], bill[1], page));
+
+		//the revenue reports read the months of their range from the cube's primary key
+		String[] cube = { "revenue_cube" };
+		checks.add(new Check("revenue by month", MechanicShop.REVENUE_BY_MONTH_SQL, cube, false, closedMonth[0], closedMonth[1]));
+		checks.add(new Check("revenue by mechanic", MechanicShop.REVENUE_BY_MECHANIC_SQL, cube, false, closedMonth[0], closedMonth[1]));
+		checks.add(new Check("revenue by make", MechanicShop.REVENUE_BY_MAKE_SQL, cube, false, closedMonth[0], closedMonth[1]));
+		checks.add(new Check("revenue cube", MechanicShop.REVENUE_CUBE_SQL, cube, false, closedMonth[0], closedMonth[1]));
+
+		//what opening and closing a request runs on the server, and the bulk close's revenue update
+		checks.add(new Check("open: customer exists", CUSTOMER_EXISTS_SQL, customer, true, custid));
+		checks.add(new Check("open: car exists", CAR_EXISTS_SQL, cars, true, vin));
+		checks.add(new Check("open: rid is unique", RID_COUNT_SQL, new String[]{ "service_request" }, true, rid));
+		checks.add(new Check("close: request and car", REQUEST_OWNER_SQL, new String[]{ "service_request", "car" }, true, rid));
+		checks.add(new Check("close: mechanic exists", MECHANIC_EXISTS_SQL, new String[]{ "mechanic" }, true, mid));
+		checks.add(new Check("close: wid is unique", WID_COUNT_SQL, new String[]{ "closed_request" }, true, wid));
+		checks.add(new Check("close: dequeue", DEQUEUE_SQL, new String[]{ "open_request" }, true, rid));
+		checks.add(new Check("bulk close revenue", BulkCloser.ADD_REVENUE, new String[]{ "service_request", "car" }, true,
+			"{" + rid + "}", "{" + mid + "}", "{" + closedMonth[0] + "}", "{50}"));
+		return checks;
+	}
+
+	/**
+	 * @return what the plan does that it should not, empty if nothing
+	 */
+	private static List<String> problems(Check check, String plan){
+		List<String> problems = new ArrayList<String>();
+		Matcher node = NODE.matcher(plan);
+		String type = null;
+		while(node.find()){
+			if(node.group(1).equals("Node Type")){
+				type = node.group(2);
+				if(check.nestedLoops && type.equals("Hash Join")){
+					problems.add("Hash Join");
+				}
+			}else{
+				String relation = node.group(2).toLowerCase();
+				String table = PARTITION.matcher(relation).replaceFirst("");
+				if("Seq Scan".equals(type)){
+					for(String indexed : check.indexed){
+						if(indexed.equals(table)){
+							problems.add("Seq Scan on " + node.group(2));
+						}
+					}
+				}
+				if(!relation.equals(table) && outside(check.partitions, table, relation)){
+					problems.add("reads " + node.group(2) + " outside the range");
+				}
+			}
+		}
+		return problems;
+	}
+
+	/**
+	 * @return true if partitions names some partitions of table but not this one
+	 */
+	private static boolean outside(String[] partitions, String table, String partition){
+		boolean limited = false;
+		for(String allowed : partitions){
+			if(allowed.equals(partition)){
+				return false;
+			}
+			limited |= PARTITION.matcher(allowed).replaceFirst("").equals(table);
+		}
+		return limited;
+	}
+
+	/**
+	 * @return the name create_month_partition gives the month partition of day
+	 */
+	private static String partition(String table, LocalDate day){
+		return String.format("%s_%d_%02d", table, day.getYear(), day.getMonthValue());
+	}
+}//end PlanCheck
@@ -0,0 +1,181 @@
+/*
+ * Concurrent report dashboard for MechanicShop
+ * ============================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class runs reports 6 to 10 at the same time, each in its own session
+ * on its own pooled connection, so the end of day summary takes as long as
+ * the slowest report instead of the sum of all of them.  Every report prints
+ * into its own buffer, and the buffer is shown as soon as the report is done,
+ * fastest first.
+ *
+ * A report still running after the timeout (mechanicshop.dashboard.timeout,
+ * seconds, default 60) is cancelled on the server.  Typing "cancel" while the
+ * dashboard runs cancels every report that is not done yet.
+ *
+ */
+
+public class ReportDashboard{
+	public static final int[] REPORTS = { 6, 7, 8, 9, 10 };
+	public static final long DEFAULT_TIMEOUT_SECONDS = 60;
+	//how often the desk is checked for a "cancel" line
+	private static final long POLL_MILLIS = 100;
+
+	/**
+	 * One report running in its own session.
+	 */
+	private static class Report implements Callable<Report>{
+		final int number;
+		final int k;
+		final String[] range;
+		final MechanicShop session;
+		final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		long millis = 0;
+		Future<Report> future;
+
+		Report(ShopContext context, int number, int k, String[] range){
+			this.number = number;
+			this.k = k;
+			this.range = range;
+			this.session = new MechanicShop(context, null, new PrintStream(buffer, true));
+		}
+
+		public Report call() throws SQLException {
+			long start = System.nanoTime();
+			session.borrowConnection();
+			session.beginOperation(MechanicShop.OPERATIONS[number]);
+			try{
+				switch(number){
+					case 6: MechanicShop.ListCustomersWithBillLessThan100(session, range); break;
+					case 7: MechanicShop.ListCarsBefore1995With50000Milles(session, range); break;
+					case 8: MechanicShop.ListCarsBefore1995With50000Milles(session, range); break;
+					case 9: MechanicShop.ListKCarsWithTheMostServices(session, k, range); break;
+					case 10: MechanicShop.ListCustomersInDescendingOrderOfTheirTotalBill(session, range); break;
+				}
+			}finally{
+				session.endOperation();
+				session.returnConnection();
+				millis = (System.nanoTime() - start) / 1000000;
+			}
+			return this;
+		}
+	}//end Report
+
+	private final MechanicShop esql;
+	private final long timeoutMillis;
+
+	/**
+	 * @param esql the desk's session, whose terminal shows the reports
+	 * @param timeoutSeconds how long a report may run before it is cancelled
+	 */
+	public ReportDashboard(MechanicShop esql, long timeoutSeconds){
+		this.esql = esql;
+		this.timeoutMillis = TimeUnit.SECONDS.toMillis(timeoutSeconds);
+	}
+
+	/**
+	 * Method to run every report and show each one when it is done.
+	 *
+	 * @param k how many cars report 9 lists
+	 * @param range the first and last date the reports cover, null for all time
+	 */
+	public void run(int k, String[] range){
+		ShopContext context = esql.getReportContext();
+		ExecutorService executor = Executors.newFixedThreadPool(REPORTS.length);
+		CompletionService<Report> done = new ExecutorCompletionService<Report>(executor);
+		List<Report> pending = new ArrayList<Report>();
+		long start = System.nanoTime();
+		try{
+			for(int number : REPORTS){
+				Report report = new Report(context, number, k, range);
+				report.future = done.submit(report);
+				pending.add(report);
+			}
+			esql.out.println("Running " + REPORTS.length + " reports, type 'cancel' to stop them.");
+
+			long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+			boolean cancelled = false;
+			while(!pending.isEmpty()){
+				Future<Report> next = done.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+				if(next != null){
+					show(next, pending);
+				}else if(System.nanoTime() > deadline){
+					esql.out.println("Timed out after " + timeoutMillis / 1000 + "s.");
+					cancelled = true;
+				}else if(cancelRequested()){
+					cancelled = true;
+				}
+				if(cancelled){
+					for(Report report : pending){
+						report.session.cancel();
+						report.future.cancel(true);
+						esql.out.println("== " + report.number + ". " + MechanicShop.OPERATIONS[report.number] + ": cancelled");
+					}
+					pending.clear();
+				}
+			}
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}finally{
+			executor.shutdownNow();
+		}
+		esql.out.println(String.format("Dashboard done in %d ms.", (System.nanoTime() - start) / 1000000));
+	}
+
+	/**
+	 * Method to print a finished report and take it off the pending list.
+	 */
+	private void show(Future<Report> next, List<Report> pending) throws InterruptedException {
+		for(Report report : pending){
+			if(report.future != next){
+				continue;
+			}
+			pending.remove(report);
+			String title = "== " + report.number + ". " + MechanicShop.OPERATIONS[report.number];
+			try{
+				next.get();
+				esql.out.println(title + " (" + report.millis + " ms)");
+			}catch(ExecutionException e){
+				esql.out.println(title + ": failed, " + e.getCause().getMessage());
+			}
+			esql.out.print(report.buffer.toString());
+			esql.out.flush();
+			return;
+		}
+	}
+
+	/**
+	 * @return true if the desk typed "cancel"
+	 */
+	private boolean cancelRequested(){
+		try{
+			if(esql.in != null && esql.in.ready()){
+				String line = esql.in.readLine();
+				return line != null && line.trim().equalsIgnoreCase("cancel");
+			}
+		}catch(IOException e){
+			// ignored.
+		}
+		return false;
+	}
+}//end ReportDashboard
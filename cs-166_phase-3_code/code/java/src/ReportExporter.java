@@ -0,0 +1,270 @@
+/*
+ * Report and table export for MechanicShop
+ * ========================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * This class writes a report or a whole table to a file for other programs,
+ * e.g. accounting pulling the billing history.  The format comes from the
+ * file name: .csv for CSV with a header line, .jsonl for one JSON object per
+ * row, either one optionally followed by .gz to compress it.
+ *
+ * CSV without query parameters is produced by the server itself with COPY
+ * ... TO STDOUT and streamed to the file.  Everything else is read through a
+ * cursor, fetchSize rows at a time.  Either way memory use does not depend on
+ * the number of rows.
+ *
+ */
+
+public class ReportExporter{
+	//the tables that may be exported, as named in create.sql
+	public static final String[] TABLES = {
+		"Customer", "Mechanic", "Car", "Owns", "Service_Request", "Closed_Request", "Customer_Bill", "Car_Service_Count", "Open_Request", "Revenue_Cube"
+	};
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final MechanicShop esql;
+
+	public ReportExporter(MechanicShop esql){
+		this.esql = esql;
+	}
+
+	/**
+	 * Method to export a table or a report.
+	 *
+	 * @param what a table name, or the number of a report (6 to 10)
+	 * @param args for report 9 first K, then for any report an optional first and last date
+	 * @param file where to write; the name picks the format
+	 * @throws java.sql.SQLException when the query failed
+	 * @throws java.io.IOException when the file could not be written
+	 */
+	public void export(String what, String[] args, File file) throws SQLException, IOException {
+		String table = tableNamed(what);
+		String sql;
+		Object[] params;
+		if(table != null){
+			sql = "SELECT * FROM " + table;
+			params = new Object[0];
+		}else{
+			int report = parseReport(what);
+			int from = report == 9 ? 1 : 0;
+			if(report == 9 && args.length < 1){
+				throw new IllegalArgumentException("report 9 needs K");
+			}
+			boolean ranged = args.length > from;
+			String rangeTo = args.length > from + 1 ? args[from + 1] : "today";
+			switch(report){
+				case 6: sql = ranged ? MechanicShop.REPORT_6_RANGE_SQL : MechanicShop.REPORT_6_SQL; break;
+				case 9: sql = ranged ? MechanicShop.REPORT_9_RANGE_SQL : MechanicShop.REPORT_9_SQL; break;
+				case 10: sql = ranged ? MechanicShop.REPORT_10_RANGE_SQL : MechanicShop.REPORT_10_SQL; break;
+				default: sql = ranged ? MechanicShop.REPORT_8_RANGE_SQL : MechanicShop.REPORT_8_SQL;
+			}
+			if(report == 9){
+				int k = Integer.parseInt(args[0]);
+				params = ranged ? new Object[]{ args[from], rangeTo, k } : new Object[]{ k };
+			}else{
+				params = ranged ? new Object[]{ args[from], rangeTo } : new Object[0];
+			}
+		}
+
+		String name = file.getName().toLowerCase();
+		boolean gzip = name.endsWith(".gz");
+		if(gzip){
+			name = name.substring(0, name.length() - 3);
+		}
+		boolean json = name.endsWith(".jsonl") || name.endsWith(".json");
+		if(!json && !name.endsWith(".csv")){
+			throw new IllegalArgumentException("Unknown format for " + file.getName() + ", use .csv or .jsonl (optionally .gz)");
+		}
+
+		long start = System.nanoTime();
+		long rows;
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
+		try{
+			if(gzip){
+				out = new GZIPOutputStream(out, BUFFER_SIZE);
+			}
+			if(!json && params.length == 0){
+				//the server formats the CSV; a table goes through its SELECT too, COPY TO refuses partitioned tables
+				rows = esql.copyOut("COPY (" + sql + ") TO STDOUT WITH (FORMAT csv, HEADER)", out);
+			}else{
+				Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE);
+				rows = json ? writeJson(writer, sql, params) : writeCsv(writer, sql, params);
+				writer.flush();
+			}
+		}finally{
+			out.close();
+		}
+		double seconds = Math.max((System.nanoTime() - start) / 1e9, 1e-9);
+		esql.out.println(String.format("Exported %d rows to %s: %d bytes in %.2fs (%.0f rows/sec, %.1f MB/sec)",
+			rows, file, file.length(), seconds, rows / seconds, file.length() / seconds / (1 << 20)));
+	}
+
+	/**
+	 * Method to write a query as CSV, the same way COPY does: a header line,
+	 * NULL as nothing, and values quoted only when they need it.
+	 */
+	private long writeCsv(final Writer writer, String sql, Object... params) throws SQLException, IOException {
+		try{
+			return esql.executeQueryAndVisit(sql, new RowVisitor(){
+				private int numCol = -1;
+
+				public void visit(ResultSet rs) throws SQLException {
+					try{
+						if(numCol < 0){
+							ResultSetMetaData rsmd = rs.getMetaData();
+							numCol = rsmd.getColumnCount();
+							for(int i = 1; i <= numCol; ++i){
+								if(i > 1) writer.write(',');
+								writeCsvValue(writer, rsmd.getColumnName(i));
+							}
+							writer.write('\n');
+						}
+						for(int i = 1; i <= numCol; ++i){
+							if(i > 1) writer.write(',');
+							String value = rs.getString(i);
+							if(value != null){
+								writeCsvValue(writer, value);
+							}
+						}
+						writer.write('\n');
+					}catch(IOException e){
+						throw new UncheckedIOException(e);
+					}
+				}
+			}, params);
+		}catch(UncheckedIOException e){
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * Method to write a query as JSON Lines, one object per row keyed by
+	 * column name.  Integer columns are written as numbers.
+	 */
+	private long writeJson(final Writer writer, String sql, Object... params) throws SQLException, IOException {
+		try{
+			return esql.executeQueryAndVisit(sql, new RowVisitor(){
+				private String[] keys;
+				private boolean[] numeric;
+
+				public void visit(ResultSet rs) throws SQLException {
+					try{
+						if(keys == null){
+							ResultSetMetaData rsmd = rs.getMetaData();
+							keys = new String[rsmd.getColumnCount()];
+							numeric = new boolean[keys.length];
+							for(int i = 0; i < keys.length; ++i){
+								StringBuilder key = new StringBuilder();
+								appendJsonString(key, rsmd.getColumnName(i + 1));
+								keys[i] = key.append(':').toString();
+								int type = rsmd.getColumnType(i + 1);
+								numeric[i] = type == Types.INTEGER || type == Types.BIGINT || type == Types.SMALLINT;
+							}
+						}
+						StringBuilder line = new StringBuilder(128);
+						line.append('{');
+						for(int i = 0; i < keys.length; ++i){
+							if(i > 0) line.append(',');
+							line.append(keys[i]);
+							String value = rs.getString(i + 1);
+							if(value == null){
+								line.append("null");
+							}else if(numeric[i]){
+								line.append(value);
+							}else{
+								appendJsonString(line, value);
+							}
+						}
+						line.append("}\n");
+						writer.write(line.toString());
+					}catch(IOException e){
+						throw new UncheckedIOException(e);
+					}
+				}
+			}, params);
+		}catch(UncheckedIOException e){
+			throw e.getCause();
+		}
+	}
+
+	private static void writeCsvValue(Writer writer, String value) throws IOException {
+		boolean quote = value.isEmpty();
+		for(int i = 0; i < value.length() && !quote; ++i){
+			char c = value.charAt(i);
+			quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+		}
+		if(!quote){
+			writer.write(value);
+			return;
+		}
+		writer.write('"');
+		writer.write(value.replace("\"", "\"\""));
+		writer.write('"');
+	}
+
+	private static void appendJsonString(StringBuilder out, String value){
+		out.append('"');
+		for(int i = 0; i < value.length(); ++i){
+			char c = value.charAt(i);
+			switch(c){
+				case '"': out.append("\\\""); break;
+				case '\\': out.append("\\\\"); break;
+				case '\n': out.append("\\n"); break;
+				case '\r': out.append("\\r"); break;
+				case '\t': out.append("\\t"); break;
+				default:
+					if(c < 0x20){
+						out.append(String.format("\\u%04x", (int) c));
+					}else{
+						out.append(c);
+					}
+			}
+		}
+		out.append('"');
+	}
+
+	/**
+	 * @return the table as named in create.sql, null if what is not a table
+	 */
+	private static String tableNamed(String what){
+		for(String table : TABLES){
+			if(table.equalsIgnoreCase(what)){
+				return table;
+			}
+		}
+		return null;
+	}
+
+	private static int parseReport(String what){
+		try{
+			int report = Integer.parseInt(what);
+			if(report >= 6 && report <= 10){
+				return report;
+			}
+		}catch(NumberFormatException e){
+			// not a number, reported below.
+		}
+		throw new IllegalArgumentException("Nothing to export called '" + what + "', use a table name or a report number (6-10)");
+	}
+}//end ReportExporter
@@ -0,0 +1,203 @@
+/*
+ * Streaming result printer for MechanicShop
+ * =========================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class prints a result set to a terminal as aligned columns.  Rows are
+ * written through one buffered writer instead of a print call per cell, and
+ * only the first page of rows is held in memory to size the columns; the rest
+ * is streamed as the driver fetches it.  At most maxRows rows are printed.
+ * The terminal's PrintStream encodes the text, so rows come out in the same
+ * charset as the prompts.
+ *
+ */
+
+public class ResultPrinter{
+	//columns are never padded wider than this, longer values just overflow
+	public static final int MAX_COLUMN_WIDTH = 40;
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	/**
+	 * Hands the buffered text to the PrintStream, which encodes it.
+	 */
+	private static class StreamWriter extends Writer{
+		private final PrintStream out;
+
+		StreamWriter(PrintStream out){
+			this.out = out;
+		}
+
+		public void write(char[] cbuf, int off, int len){
+			out.print(new String(cbuf, off, len));
+		}
+
+		public void flush(){
+			out.flush();
+		}
+
+		public void close(){
+			flush();
+		}
+	}//end StreamWriter
+
+	private final PrintStream out;
+	private final int maxRows;
+	//text size of the values read by the last print
+	private long bytes = 0;
+
+	/**
+	 * @param out the terminal to print to
+	 * @param maxRows the most rows to print, 0 for no limit
+	 */
+	public ResultPrinter(PrintStream out, int maxRows){
+		this.out = out;
+		this.maxRows = maxRows;
+	}
+
+	/**
+	 * Method to print the rows of a result set under a header of column
+	 * names.  Nothing is printed for an empty result.
+	 *
+	 * @param rs the result set, positioned before the first row
+	 * @param pageSize how many rows to look at to size the columns
+	 * @return the number of rows printed
+	 * @throws java.sql.SQLException when reading the result set failed
+	 */
+	public int print(ResultSet rs, int pageSize) throws SQLException {
+		ResultSetMetaData rsmd = rs.getMetaData();
+		int numCol = rsmd.getColumnCount();
+		int limit = maxRows > 0 ? maxRows : Integer.MAX_VALUE;
+		bytes = 0;
+
+		//reads the first page to size the columns
+		int[] widths = new int[numCol];
+		String[] header = new String[numCol];
+		for(int i = 0; i < numCol; ++i){
+			header[i] = rsmd.getColumnName(i + 1);
+			widths[i] = Math.min(header[i].length(), MAX_COLUMN_WIDTH);
+		}
+		List<String[]> page = new ArrayList<String[]>();
+		boolean more = rs.next();
+		while(more && page.size() < Math.min(Math.max(pageSize, 1), limit)){
+			String[] row = readRow(rs, numCol);
+			for(int i = 0; i < numCol; ++i){
+				widths[i] = Math.max(widths[i], Math.min(row[i].length(), MAX_COLUMN_WIDTH));
+			}
+			page.add(row);
+			more = rs.next();
+		}
+		if(page.isEmpty()){
+			return 0;
+		}
+
+		PrintWriter writer = new PrintWriter(new BufferedWriter(new StreamWriter(out), BUFFER_SIZE));
+		StringBuilder line = new StringBuilder();
+		writeHeader(writer, line, header, widths);
+		for(String[] row : page){
+			writeRow(writer, line, row, widths);
+		}
+		int rowCount = page.size();
+		page = null;
+
+		//streams the rest straight from the driver
+		while(more && rowCount < limit){
+			writeRow(writer, line, readRow(rs, numCol), widths);
+			++rowCount;
+			more = rs.next();
+		}
+		if(more){
+			writer.println("(only the first " + rowCount + " rows are shown)");
+		}
+		writer.flush();
+		return rowCount;
+	}
+
+	/**
+	 * Method to print rows that are already in memory, e.g. from a cache,
+	 * the same way as a result set.  Nothing is printed for no rows.
+	 *
+	 * @param header the column names
+	 * @param rows the rows, one value per column
+	 * @return the number of rows printed
+	 */
+	public int print(String[] header, List<String[]> rows){
+		int limit = maxRows > 0 ? Math.min(maxRows, rows.size()) : rows.size();
+		if(limit == 0){
+			return 0;
+		}
+		int[] widths = new int[header.length];
+		for(int i = 0; i < header.length; ++i){
+			widths[i] = Math.min(header[i].length(), MAX_COLUMN_WIDTH);
+			for(int r = 0; r < limit; ++r){
+				widths[i] = Math.max(widths[i], Math.min(rows.get(r)[i].length(), MAX_COLUMN_WIDTH));
+			}
+		}
+		PrintWriter writer = new PrintWriter(new BufferedWriter(new StreamWriter(out), BUFFER_SIZE));
+		StringBuilder line = new StringBuilder();
+		writeHeader(writer, line, header, widths);
+		for(int r = 0; r < limit; ++r){
+			writeRow(writer, line, rows.get(r), widths);
+		}
+		if(limit < rows.size()){
+			writer.println("(only the first " + limit + " rows are shown)");
+		}
+		writer.flush();
+		return limit;
+	}
+
+	/**
+	 * @return the text size of the values read by the last print
+	 */
+	public long getByteCount(){
+		return bytes;
+	}
+
+	private String[] readRow(ResultSet rs, int numCol) throws SQLException {
+		String[] row = new String[numCol];
+		for(int i = 0; i < numCol; ++i){
+			String value = rs.getString(i + 1);
+			bytes += value == null ? 0 : value.length();
+			row[i] = value == null ? "null" : value.trim();
+		}
+		return row;
+	}
+
+	private static void writeHeader(PrintWriter writer, StringBuilder line, String[] header, int[] widths){
+		writeRow(writer, line, header, widths);
+		line.setLength(0);
+		for(int i = 0; i < widths.length; ++i){
+			for(int j = 0; j < widths[i]; ++j){
+				line.append('-');
+			}
+			line.append("  ");
+		}
+		writer.println(line);
+	}
+
+	private static void writeRow(PrintWriter writer, StringBuilder line, String[] row, int[] widths){
+		line.setLength(0);
+		for(int i = 0; i < row.length; ++i){
+			line.append(row[i]);
+			for(int j = row[i].length(); j < widths[i]; ++j){
+				line.append(' ');
+			}
+			line.append("  ");
+		}
+		writer.println(line);
+	}
+}//end ResultPrinter
@@ -0,0 +1,27 @@
+/*
+ * Row callback for MechanicShop queries
+ * =====================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * This interface is called once per row by
+ * MechanicShop.executeQueryAndVisit.  The visitor reads the columns it needs
+ * straight from the result set with the typed getters (getInt, getLong, ...),
+ * so no per-cell String or list is created.
+ *
+ */
+
+public interface RowVisitor{
+	/**
+	 * @param rs the result set, positioned on the current row
+	 * @throws java.sql.SQLException when reading a column failed
+	 */
+	void visit(ResultSet rs) throws SQLException;
+}//end RowVisitor
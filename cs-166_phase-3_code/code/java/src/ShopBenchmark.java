@@ -0,0 +1,275 @@
+/*
+ * Benchmark harness for the MechanicShop query and report paths
+ * =============================================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * This class measures the menu operations, the raw query helpers and the
+ * bulk load against a local database (see postgresql/startPostgreSQL.sh).
+ * For every data directory given, it loads that data set with BulkLoader
+ * and then runs each benchmark for a number of warmup and measured
+ * iterations.  The menu operations are driven through a session whose
+ * terminal is a script, so they run exactly the code a desk runs.
+ *
+ * Each result is appended to the results file as one JSON object per line
+ * (scale, benchmark, iterations, mean and percentile latencies in
+ * microseconds), so runs can be compared over time.
+ *
+ * The database is reloaded for every data directory: never point this at a
+ * database whose data you want to keep.
+ *
+ */
+
+public class ShopBenchmark{
+	public static final int WARMUP = Integer.getInteger("mechanicshop.bench.warmup", 20);
+	public static final int ITERATIONS = Integer.getInteger("mechanicshop.bench.iterations", 200);
+
+	/**
+	 * One benchmarked operation.  The script is what the desk would type.
+	 */
+	interface Operation{
+		String script(int iteration);
+		void run(MechanicShop esql) throws SQLException;
+	}
+
+	/**
+	 * A terminal input that is refilled with a new script before every
+	 * iteration.  It hands out one line per read, so the readers on top of
+	 * it never buffer more than the line asked for, and the lines an
+	 * operation did not read are dropped with the script.
+	 */
+	static class ScriptReader extends Reader{
+		private String script = "";
+		private int pos = 0;
+
+		void set(String script){
+			this.script = script;
+			this.pos = 0;
+		}
+
+		public int read(char[] cbuf, int off, int len){
+			if(pos >= script.length()){
+				return -1;
+			}
+			int end = script.indexOf('\n', pos);
+			int n = Math.min(len, (end < 0 ? script.length() : end + 1) - pos);
+			script.getChars(pos, pos + n, cbuf, off);
+			pos += n;
+			return n;
+		}
+
+		public void close(){
+		}
+	}//end ScriptReader
+
+	private static final PrintStream DISCARD = new PrintStream(new OutputStream(){
+		public void write(int b){
+		}
+		public void write(byte[] b, int off, int len){
+		}
+	});
+
+	private final ConnectionPool pool;
+	private final PrintWriter results;
+	private final ScriptReader script = new ScriptReader();
+	private String scale = "";
+
+	public ShopBenchmark(ConnectionPool pool, File resultsFile) throws IOException {
+		this.pool = pool;
+		this.results = new PrintWriter(new FileWriter(resultsFile, true));
+	}
+
+	/**
+	 * Method to run every benchmark once per data set.
+	 *
+	 * @param dataDirs the data sets, typically of increasing size
+	 * @param sqlDir the directory holding create.sql and after_load.sql
+	 * @throws java.lang.Exception when loading or a benchmark failed
+	 */
+	public void run(List<File> dataDirs, File sqlDir) throws Exception {
+		try{
+			for(File dataDir : dataDirs){
+				runScale(dataDir, sqlDir);
+			}
+		}finally{
+			results.close();
+		}
+	}
+
+	private void runScale(final File dataDir, final File sqlDir) throws Exception {
+		scale = dataDir.getPath();
+		System.out.println("== " + scale + " ==");
+
+		//data loading is measured once per scale, it replaces the database
+		long start = System.nanoTime();
+		new BulkLoader(pool).load(dataDir, sqlDir);
+		record("load", new long[]{ System.nanoTime() - start });
+
+		ShopContext context = new ShopContext(pool);
+		MechanicShop esql = new MechanicShop(context, new BufferedReader(script), DISCARD);
+		esql.borrowConnection();
+		try{
+			context.load(esql);
+			scale = dataDir.getPath() + " (" + esql.executeQueryAndReturnColumns("SELECT COUNT(*) FROM Service_Request").getLong(0, 0) + " requests)";
+
+			//existing rows the insert paths can refer to
+			ColumnarResult sample = esql.executeQueryAndReturnColumns(
+				"SELECT C.id, C.lname, O.car_vin, (SELECT MIN(id) FROM Mechanic), C.fname " +
+				"FROM Customer C, Owns O WHERE O.customer_id = C.id ORDER BY C.id LIMIT 1");
+			final int custid = sample.getInt(0, 0);
+			//full last and first name, so the lookup lists a single page
+			final String name = sample.getString(0, 1).trim() + ", " + sample.getString(0, 4).trim();
+			final String vin = sample.getString(0, 2);
+			final int mid = sample.getInt(0, 3);
+			final long runId = System.currentTimeMillis() % 100000;
+
+			bench(esql, "executeQuery", new Operation(){
+				public String script(int i){ return ""; }
+				public void run(MechanicShop esql) throws SQLException {
+					esql.executeQuery("SELECT * FROM Customer WHERE id = ?", custid);
+				}
+			});
+			bench(esql, "executeQueryAndReturnResult", new Operation(){
+				public String script(int i){ return ""; }
+				public void run(MechanicShop esql) throws SQLException {
+					esql.executeQueryAndReturnResult("SELECT * FROM Service_Request WHERE customer_id = ?", custid);
+				}
+			});
+			bench(esql, "AddCustomer", new Operation(){
+				public String script(int i){ return "Bench\nCustomer\n(555)555-5555\n1 Bench Street\n"; }
+				public void run(MechanicShop esql) throws SQLException {
+					MechanicShop.AddCustomer(esql);
+				}
+			});
+			bench(esql, "AddMechanic", new Operation(){
+				public String script(int i){ return "Bench\nMechanic\n5\n"; }
+				public void run(MechanicShop esql) throws SQLException {
+					MechanicShop.AddMechanic(esql);
+				}
+			});
+			bench(esql, "AddCar", new Operation(){
+				public String script(int i){ return String.format("BN%05d%09d\nBench\nCar\n2010\n", runId, i); }
+				public void run(MechanicShop esql) throws SQLException {
+					MechanicShop.AddCar(esql);
+				}
+			});
+			bench(esql, "InsertServiceRequest", new Operation(){
+				public String script(int i){ return name + "\nyes\n" + custid + "\n" + vin + "\n5/20/2016\n10000\nBench complaint\n"; }
+				public void run(MechanicShop esql) throws SQLException {
+					MechanicShop.InsertServiceRequest(esql);
+				}
+			});
+			//a request is closed once, so every iteration closes one opened for it here
+			final int[] open = new int[WARMUP + ITERATIONS];
+			for(int i = 0; i < open.length; ++i){
+				open[i] = esql.requestKeys.nextKey();
+				esql.executeQueryAndReturnColumns(MechanicShop.OPEN_REQUEST_SQL, open[i], custid, vin, "5/20/2016", 10000, "Bench complaint");
+			}
+			bench(esql, "CloseServiceRequest", new Operation(){
+				public String script(int i){ return open[i] + "\n" + mid + "\n10-22-2016\nBench comment\n50\n"; }
+				public void run(MechanicShop esql) throws SQLException {
+					MechanicShop.CloseServiceRequest(esql);
+				}
+			});
+			bench(esql, "ListCustomersWithBillLessThan100", new Operation(){
+				public String script(int i){ return "\nq\n"; }
+				public void run(MechanicShop esql) throws SQLException {
+					MechanicShop.ListCustomersWithBillLessThan100(esql);
+				}
+			});
+			bench(esql, "ListCustomersWithMoreThan20Cars", new Operation(){
+				public String script(int i){ return "\nq\n"; }
+				public void run(MechanicShop esql) throws SQLException {
+					MechanicShop.ListCustomersWithMoreThan20Cars(esql);
+				}
+			});
+			bench(esql, "ListCarsBefore1995With50000Milles", new Operation(){
+				public String script(int i){ return "\nq\n"; }
+				public void run(MechanicShop esql) throws SQLException {
+					MechanicShop.ListCarsBefore1995With50000Milles(esql);
+				}
+			});
+			bench(esql, "ListKCarsWithTheMostServices", new Operation(){
+				public String script(int i){ return "10\n\n"; }
+				public void run(MechanicShop esql) throws SQLException {
+					MechanicShop.ListKCarsWithTheMostServices(esql);
+				}
+			});
+			bench(esql, "ListCustomersInDescendingOrderOfTheirTotalBill", new Operation(){
+				public String script(int i){ return "\nq\n"; }
+				public void run(MechanicShop esql) throws SQLException {
+					MechanicShop.ListCustomersInDescendingOrderOfTheirTotalBill(esql);
+				}
+			});
+			bench(esql, "RevenueReport", new Operation(){
+				public String script(int i){ return (i % 4 + 1) + "\n\n"; }
+				public void run(MechanicShop esql) throws SQLException {
+					MechanicShop.RevenueReport(esql);
+				}
+			});
+		}finally{
+			esql.returnConnection();
+		}
+	}
+
+	/**
+	 * Method to time one operation, warmup iterations are not recorded.
+	 */
+	private void bench(MechanicShop esql, String name, Operation op) throws SQLException {
+		for(int i = 0; i < WARMUP; ++i){
+			script.set(op.script(i));
+			op.run(esql);
+		}
+		long[] samples = new long[ITERATIONS];
+		for(int i = 0; i < ITERATIONS; ++i){
+			script.set(op.script(WARMUP + i));
+			long start = System.nanoTime();
+			op.run(esql);
+			samples[i] = System.nanoTime() - start;
+		}
+		record(name, samples);
+	}
+
+	/**
+	 * Method to write one result line and echo it to standard out.
+	 */
+	private void record(String name, long[] samples){
+		long[] sorted = samples.clone();
+		Arrays.sort(sorted);
+		double total = 0;
+		for(long sample : sorted){
+			total += sample;
+		}
+		String line = String.format(Locale.ROOT,
+			"{\"timestamp\":%d,\"scale\":\"%s\",\"benchmark\":\"%s\",\"iterations\":%d," +
+			"\"mean_us\":%.1f,\"p50_us\":%.1f,\"p90_us\":%.1f,\"p99_us\":%.1f,\"max_us\":%.1f}",
+			System.currentTimeMillis(), scale.replace("\\", "\\\\").replace("\"", "\\\""), name, sorted.length,
+			total / sorted.length / 1e3, percentile(sorted, 0.50), percentile(sorted, 0.90),
+			percentile(sorted, 0.99), sorted[sorted.length - 1] / 1e3);
+		results.println(line);
+		results.flush();
+		System.out.println(line);
+	}
+
+	private static double percentile(long[] sorted, double p){
+		int index = (int) Math.ceil(p * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e3;
+	}
+}//end ShopBenchmark
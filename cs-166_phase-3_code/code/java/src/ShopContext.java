@@ -0,0 +1,76 @@
+/*
+ * State shared by the MechanicShop sessions
+ * =========================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class holds what all sessions of one process share: the connection
+ * pool (server mode only), the in-memory indexes and the entity cache the
+ * menu operations consult before going to the database and the metrics.  Everything in here is thread safe.
+ *
+ */
+
+public class ShopContext{
+	//dates remembered by partitionDates before it starts over
+	public static final int MAX_PARTITION_DATES = 10000;
+
+	//null when the session owns its connection
+	public final ConnectionPool pool;
+	public final KeyIndex keys = new KeyIndex();
+	public final CustomerNameIndex names = new CustomerNameIndex();
+	public final EntityCache entities = new EntityCache();
+	public final ShopMetrics metrics;
+	//"table date" pairs whose month partition is known to exist
+	public final Set<String> partitionDates = ConcurrentHashMap.newKeySet();
+
+	public ShopContext(ConnectionPool pool){
+		this(pool, new ShopMetrics());
+	}
+
+	/**
+	 * Constructor for a context that adds to the metrics of another one.
+	 */
+	public ShopContext(ConnectionPool pool, ShopMetrics metrics){
+		this.pool = pool;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Method to (re)load the in-memory indexes from the database.
+	 *
+	 * @param esql a session with a connection
+	 * @throws java.sql.SQLException when reading the data failed
+	 */
+	public void load(MechanicShop esql) throws SQLException {
+		keys.load(esql);
+		names.load(esql);
+		entities.clear();
+	}
+
+	/**
+	 * Method to load the indexes through a connection borrowed from the pool.
+	 *
+	 * @throws java.sql.SQLException when reading the data failed
+	 */
+	public void load() throws SQLException {
+		MechanicShop loader = new MechanicShop(this, null, System.out);
+		loader.borrowConnection();
+		try{
+			load(loader);
+		}finally{
+			loader.returnConnection();
+		}
+	}
+
+	public String toString(){
+		return keys + ", " + names.size() + " customer names";
+	}
+}//end ShopContext
@@ -0,0 +1,242 @@
+/*
+ * Operation and statement metrics for MechanicShop
+ * ================================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * This class records where the time goes.  Every SQL statement run by the
+ * query helpers and every menu operation gets a latency histogram and
+ * counters for rows returned, bytes fetched and round trips to the server.
+ * An operation also counts the statements it ran, so an operation that loops
+ * over single-row lookups (N+1) shows up as many statements and round trips
+ * per call.
+ *
+ * Bytes are the text size of the values a helper reads out of the result,
+ * so queries whose rows are only counted report 0.  Round trips are counted
+ * from the fetch size: a cursor query needs one more per fetchSize rows.
+ *
+ * One instance is shared by all sessions of a process.  It is published over
+ * JMX and written to a file when the process exits.
+ *
+ */
+
+public class ShopMetrics implements ShopMetricsMBean{
+	public static final String OBJECT_NAME = "MechanicShop:type=Metrics";
+
+	/**
+	 * Totals of one operation or statement.
+	 */
+	public static class Stat{
+		public final LatencyHistogram latency = new LatencyHistogram();
+		public final LongAdder statements = new LongAdder();
+		public final LongAdder rows = new LongAdder();
+		public final LongAdder bytes = new LongAdder();
+		public final LongAdder roundTrips = new LongAdder();
+
+		/**
+		 * @return calls, latency percentiles in ms, and averages per call
+		 */
+		public String toString(){
+			long calls = Math.max(latency.getCount(), 1);
+			return String.format("%8d %9.2f %9.2f %9.2f %9.2f %8.1f %9.1f %10.0f %7.1f",
+				latency.getCount(), latency.getMean() / 1000, latency.getPercentile(50) / 1000.0,
+				latency.getPercentile(99) / 1000.0, latency.getMax() / 1000.0,
+				(double) statements.sum() / calls, (double) rows.sum() / calls,
+				(double) bytes.sum() / calls, (double) roundTrips.sum() / calls);
+		}
+	}//end Stat
+
+	/**
+	 * What one running operation did so far.  Used by one session at a time.
+	 */
+	public class Trace{
+		private final String name;
+		private final long start = System.nanoTime();
+		private long statements = 0;
+		private long rows = 0;
+		private long bytes = 0;
+		private long roundTrips = 0;
+
+		Trace(String name){
+			this.name = name;
+		}
+
+		/**
+		 * Method to record the operation once it is over.
+		 */
+		public void end(){
+			Stat stat = stat(operations, name);
+			stat.latency.record((System.nanoTime() - start) / 1000);
+			stat.statements.add(statements);
+			stat.rows.add(rows);
+			stat.bytes.add(bytes);
+			stat.roundTrips.add(roundTrips);
+		}
+	}//end Trace
+
+	private static final String HEADER = String.format("%8s %9s %9s %9s %9s %8s %9s %10s %7s  %s",
+		"calls", "mean ms", "p50 ms", "p99 ms", "max ms", "stmts", "rows", "bytes", "trips", "name");
+
+	private volatile Map<String, Stat> operations = new ConcurrentHashMap<String, Stat>();
+	private volatile Map<String, Stat> statements = new ConcurrentHashMap<String, Stat>();
+
+	/**
+	 * Method to start recording an operation.
+	 *
+	 * @param name the menu operation, e.g. "InsertServiceRequest"
+	 * @return the trace the statements of the operation are added to
+	 */
+	public Trace begin(String name){
+		return new Trace(name);
+	}
+
+	/**
+	 * Method to record one statement.
+	 *
+	 * @param trace the operation it ran in, or null
+	 * @param sql the SQL string
+	 * @param startNanos System.nanoTime() before it was sent
+	 * @param rows rows returned or changed
+	 * @param bytes text size of the values read
+	 * @param roundTrips messages exchanged with the server
+	 */
+	public void record(Trace trace, String sql, long startNanos, long rows, long bytes, long roundTrips){
+		Stat stat = stat(statements, sql);
+		stat.latency.record((System.nanoTime() - startNanos) / 1000);
+		stat.statements.increment();
+		stat.rows.add(rows);
+		stat.bytes.add(bytes);
+		stat.roundTrips.add(roundTrips);
+		if(trace != null){
+			trace.statements++;
+			trace.rows += rows;
+			trace.bytes += bytes;
+			trace.roundTrips += roundTrips;
+		}
+	}
+
+	public String[] getOperations(){
+		return lines(operations);
+	}
+
+	public String[] getStatements(){
+		return lines(statements);
+	}
+
+	public String getReport(){
+		StringBuilder report = new StringBuilder();
+		report.append("Operations\n").append(HEADER).append('\n');
+		for(String line : getOperations()){
+			report.append(line).append('\n');
+		}
+		report.append("\nStatements\n").append(HEADER).append('\n');
+		for(String line : getStatements()){
+			report.append(line).append('\n');
+		}
+		return report.toString();
+	}
+
+	public void reset(){
+		operations = new ConcurrentHashMap<String, Stat>();
+		statements = new ConcurrentHashMap<String, Stat>();
+	}
+
+	/**
+	 * Method to publish the metrics over JMX, replacing an earlier instance.
+	 */
+	public void register(){
+		try{
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if(server.isRegistered(name)){
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(this, name);
+		}catch(JMException e){
+			System.err.println("Metrics are not published over JMX: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Method to write the report to a file, replacing it.
+	 *
+	 * @param file where to write
+	 * @throws java.io.IOException when the file could not be written
+	 */
+	public void writeTo(File file) throws IOException {
+		PrintWriter writer = new PrintWriter(new FileWriter(file));
+		try{
+			writer.print(getReport());
+		}finally{
+			writer.close();
+		}
+	}
+
+	private static Stat stat(Map<String, Stat> stats, String name){
+		Stat stat = stats.get(name);
+		if(stat == null){
+			stats.putIfAbsent(name, new Stat());
+			stat = stats.get(name);
+		}
+		return stat;
+	}
+
+	/**
+	 * One report line, read from its Stat once so it can not change while sorting.
+	 */
+	private static class Line{
+		final double total;
+		final String text;
+
+		Line(double total, String text){
+			this.total = total;
+			this.text = text;
+		}
+	}//end Line
+
+	/**
+	 * @return one line per entry, most total time first
+	 */
+	private static String[] lines(Map<String, Stat> stats){
+		//the statements are still being timed, so sort a snapshot of the totals rather than the live ones
+		List<Line> snapshot = new ArrayList<Line>();
+		for(Map.Entry<String, Stat> entry : stats.entrySet()){
+			Stat stat = entry.getValue();
+			snapshot.add(new Line(total(stat), stat + "  " + entry.getKey().replaceAll("\\s+", " ")));
+		}
+		Collections.sort(snapshot, new Comparator<Line>(){
+			public int compare(Line a, Line b){
+				return Double.compare(b.total, a.total);
+			}
+		});
+		String[] lines = new String[snapshot.size()];
+		for(int i = 0; i < lines.length; ++i){
+			lines[i] = snapshot.get(i).text;
+		}
+		return lines;
+	}
+
+	private static double total(Stat stat){
+		return stat.latency.getMean() * stat.latency.getCount();
+	}
+}//end ShopMetrics
@@ -0,0 +1,36 @@
+/*
+ * JMX view of the MechanicShop metrics
+ * ====================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+/**
+ * Management interface of ShopMetrics, shown by jconsole or any other JMX
+ * client under MechanicShop:type=Metrics.
+ *
+ */
+
+public interface ShopMetricsMBean{
+	/**
+	 * @return one line per menu operation: calls, latency percentiles and per call statements, rows, bytes and round trips
+	 */
+	String[] getOperations();
+
+	/**
+	 * @return one line per SQL statement, in the same format
+	 */
+	String[] getStatements();
+
+	/**
+	 * @return the full report, as written to the metrics file
+	 */
+	String getReport();
+
+	/**
+	 * Method to forget everything recorded so far.
+	 */
+	void reset();
+}//end ShopMetricsMBean
@@ -0,0 +1,96 @@
+/*
+ * Multi-desk server mode for MechanicShop
+ * =======================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * This class serves the MechanicShop menu to many front desk terminals at
+ * once.  It listens on a local socket; every desk that connects (e.g. with
+ * "nc localhost 9000") gets its own session with its own input, output and key
+ * allocators, while the ShopContext is shared.  Sessions only borrow a
+ * connection from the context's pool while a menu operation runs, so more
+ * desks than connections can be open at the same time.
+ *
+ */
+
+public class ShopServer{
+	private final ShopContext context;
+	private final int port;
+	private final int maxSessions;
+
+	public ShopServer(ShopContext context, int port, int maxSessions){
+		this.context = context;
+		this.port = port;
+		this.maxSessions = maxSessions;
+	}
+
+	/**
+	 * Method to accept desk connections until the process is stopped.  Each
+	 * desk runs on a worker thread; desks beyond maxSessions wait in the
+	 * executor queue until a session ends.
+	 *
+	 * @throws java.io.IOException when the server socket could not be opened
+	 */
+	public void serve() throws IOException {
+		ExecutorService sessions = Executors.newFixedThreadPool(maxSessions);
+		ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		System.out.println("Serving front desks on localhost:" + port + " (" + maxSessions + " sessions, " + context.pool.getSize() + " connections)");
+		try{
+			while(!server.isClosed()){
+				final Socket socket = server.accept();
+				sessions.execute(new Runnable(){
+					public void run(){
+						runSession(socket);
+					}
+				});
+			}
+		}finally{
+			sessions.shutdownNow();
+			server.close();
+		}
+	}
+
+	/**
+	 * Method to run the main menu for one desk until it exits or disconnects.
+	 *
+	 * @param socket the desk connection
+	 */
+	private void runSession(Socket socket){
+		String desk = socket.getRemoteSocketAddress().toString();
+		System.out.println("Desk connected: " + desk);
+		MechanicShop esql = null;
+		try{
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+			PrintStream out = new PrintStream(socket.getOutputStream(), true, "UTF-8");
+			esql = new MechanicShop(context, in, out);
+			MechanicShop.runMenu(esql);
+			out.println("Bye !");
+		}catch(Exception e){
+			System.err.println("Desk " + desk + ": " + e.getMessage());
+		}finally{
+			if(esql != null){
+				esql.cleanup();
+			}
+			try{
+				socket.close();
+			}catch(IOException e){
+				// ignored.
+			}
+			System.out.println("Desk disconnected: " + desk);
+		}
+	}
+}//end ShopServer
@@ -0,0 +1,119 @@
+/*
+ * Prepared statement cache for the MechanicShop connection
+ * ========================================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class keeps the most recently used PreparedStatements of one
+ * connection, keyed by their SQL text.  Reusing the same statement object lets
+ * the PostgreSQL JDBC driver switch to a server-side prepared statement, so
+ * repeated queries are parsed and planned once instead of on every call.  The
+ * least recently used statement is closed when the cache is full.
+ *
+ */
+
+public class StatementCache{
+	public static final int DEFAULT_CAPACITY = 64;
+
+	private final Connection connection;
+	private final LinkedHashMap<String, PreparedStatement> statements;
+	private long hits = 0;
+	private long misses = 0;
+
+	public StatementCache(Connection connection, final int capacity){
+		this.connection = connection;
+		//access ordered, so the eldest entry is the least recently used one
+		this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true){
+			protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest){
+				if(size() > capacity){
+					closeQuietly(eldest.getValue());
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Method to get a prepared statement for the given SQL, preparing it only
+	 * if it is not cached yet.  Parameters left over from the last use are
+	 * cleared.
+	 *
+	 * @param sql the SQL string with ? placeholders
+	 * @return a statement ready to have its parameters bound
+	 * @throws java.sql.SQLException when the statement could not be prepared
+	 */
+	public synchronized PreparedStatement prepare(String sql) throws SQLException {
+		PreparedStatement stmt = statements.get(sql);
+		if(stmt != null && !stmt.isClosed()){
+			hits++;
+			stmt.clearParameters();
+			return stmt;
+		}
+		misses++;
+		stmt = connection.prepareStatement(sql);
+		statements.put(sql, stmt);
+		return stmt;
+	}
+
+	/**
+	 * Method to drop a statement from the cache, e.g. after it failed and
+	 * the driver may have left it in a bad state.
+	 *
+	 * @param sql the SQL string the statement was prepared for
+	 */
+	public synchronized void evict(String sql){
+		closeQuietly(statements.remove(sql));
+	}
+
+	public synchronized long getHits(){
+		return hits;
+	}
+
+	public synchronized long getMisses(){
+		return misses;
+	}
+
+	/**
+	 * @return the fraction of prepare calls served from the cache, 0 if none
+	 */
+	public synchronized double hitRate(){
+		long total = hits + misses;
+		return total == 0 ? 0.0 : (double) hits / total;
+	}
+
+	public synchronized String toString(){
+		return String.format("Statement cache: %d hits, %d misses (%.1f%% hit rate), %d cached",
+			hits, misses, hitRate() * 100, statements.size());
+	}
+
+	/**
+	 * Method to close every cached statement.
+	 */
+	public synchronized void close(){
+		for(PreparedStatement stmt : statements.values()){
+			closeQuietly(stmt);
+		}
+		statements.clear();
+	}
+
+	private static void closeQuietly(PreparedStatement stmt){
+		try{
+			if(stmt != null){
+				stmt.close();
+			}
+		}catch(SQLException e){
+			// ignored.
+		}
+	}
+}//end StatementCache
@@ -9,4 +9,6 @@ cp ../data/*.csv /tmp/$USER/myDB/data/.
 
 echo "Initializing tables .. "
 sleep 1
-psql -h localhost -p $PGPORT $USER"_DB" < ../sql/create.sql
\ No newline at end of file
+psql -h localhost -p $PGPORT $USER"_DB" < ../sql/create.sql
+psql -h localhost -p $PGPORT $USER"_DB" < ../sql/load.sql
+psql -h localhost -p $PGPORT $USER"_DB" < ../sql/after_load.sql
@@ -0,0 +1,50 @@
+-- Run after the data has been loaded, either by load.sql or by the
+-- MechanicShop bulk loader.
+
+--------------------------
+-- MONTH PARTITIONS     --
+--------------------------
+-- rows copied by load.sql are all in the default partitions; give each month
+-- its own. BulkLoader creates the partitions before it copies, so for it
+-- the default partitions are empty and this finds nothing to move.
+SELECT split_default_partition('service_request');
+SELECT split_default_partition('closed_request');
+
+--------------------------
+-- SYNC KEY SEQUENCES   --
+--------------------------
+-- start every sequence right after the largest key loaded
+SELECT setval('customer_id_seq', (SELECT COALESCE(MAX(id), 0) + 1 FROM Customer), false);
+SELECT setval('mechanic_id_seq', (SELECT COALESCE(MAX(id), 0) + 1 FROM Mechanic), false);
+SELECT setval('owns_ownership_id_seq', (SELECT COALESCE(MAX(ownership_id), 0) + 1 FROM Owns), false);
+SELECT setval('service_request_rid_seq', (SELECT COALESCE(MAX(rid), 0) + 1 FROM Service_Request), false);
+SELECT setval('closed_request_wid_seq', (SELECT COALESCE(MAX(wid), 0) + 1 FROM Closed_Request), false);
+
+--------------------------
+-- BACKFILL ROLLUPS     --
+--------------------------
+TRUNCATE Customer_Bill;
+INSERT INTO Customer_Bill (customer_id, total_bill, closed_count)
+SELECT SR.customer_id, SUM(CR.bill), COUNT(*)
+FROM Closed_Request CR, Service_Request SR
+WHERE CR.rid = SR.rid
+GROUP BY SR.customer_id;
+
+TRUNCATE Revenue_Cube;
+INSERT INTO Revenue_Cube (month, mid, make, revenue, jobs)
+SELECT date_trunc('month', CR.date), CR.mid, C.make, SUM(CR.bill), COUNT(*)
+FROM Closed_Request CR, Service_Request SR, Car C
+WHERE CR.rid = SR.rid AND C.vin = SR.car_vin
+GROUP BY 1, 2, 3;
+
+TRUNCATE Car_Service_Count;
+INSERT INTO Car_Service_Count (car_vin, service_count)
+SELECT car_vin, COUNT(*)
+FROM Service_Request
+GROUP BY car_vin;
+
+TRUNCATE Open_Request;
+INSERT INTO Open_Request (rid, date, odometer)
+SELECT SR.rid, SR.date, SR.odometer
+FROM Service_Request SR
+WHERE NOT EXISTS (SELECT 1 FROM Closed_Request CR WHERE CR.rid = SR.rid);
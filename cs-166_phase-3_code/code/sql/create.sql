@@ -4,6 +4,24 @@ DROP TABLE IF EXISTS Car CASCADE;--OK
 DROP TABLE IF EXISTS Owns CASCADE;--OK
 DROP TABLE IF EXISTS Service_Request CASCADE;--OK
 DROP TABLE IF EXISTS Closed_Request CASCADE;--OK
+DROP TABLE IF EXISTS Customer_Bill CASCADE;--OK
+DROP TABLE IF EXISTS Car_Service_Count CASCADE;--OK
+DROP TABLE IF EXISTS Open_Request CASCADE;--OK
+DROP TABLE IF EXISTS Revenue_Cube CASCADE;--OK
+DROP SEQUENCE IF EXISTS customer_id_seq;--OK
+DROP SEQUENCE IF EXISTS mechanic_id_seq;--OK
+DROP SEQUENCE IF EXISTS owns_ownership_id_seq;--OK
+DROP SEQUENCE IF EXISTS service_request_rid_seq;--OK
+DROP SEQUENCE IF EXISTS closed_request_wid_seq;--OK
+DROP SCHEMA IF EXISTS archive CASCADE;--OK
+DROP DOMAIN IF EXISTS us_postal_code;--OK
+DROP DOMAIN IF EXISTS _STATUS;--OK
+DROP DOMAIN IF EXISTS _GENDER;--OK
+DROP DOMAIN IF EXISTS _CODE;--OK
+DROP DOMAIN IF EXISTS _PINTEGER;--OK
+DROP DOMAIN IF EXISTS _PZEROINTEGER;--OK
+DROP DOMAIN IF EXISTS _YEARS;--OK
+DROP DOMAIN IF EXISTS _YEAR;--OK
 
 
 -------------
@@ -18,6 +36,11 @@ CREATE DOMAIN _PZEROINTEGER AS int4 CHECK(VALUE >= 0);
 CREATE DOMAIN _YEARS AS int4 CHECK(VALUE >= 0 AND VALUE < 100);
 CREATE DOMAIN _YEAR AS int4 CHECK(VALUE >= 1970);
 
+----------------
+---EXTENSIONS---
+----------------
+CREATE EXTENSION IF NOT EXISTS pg_trgm;
+
 ------------
 ---TABLES---
 ------------
@@ -48,6 +71,10 @@ CREATE TABLE Car
 	year _YEAR NOT NULL,
 	PRIMARY KEY (vin)
 );
+-- customer lookups by similar names (trigram), the start of a name is looked up in CustomerNameIndex
+CREATE INDEX customer_lname_trgm_idx ON Customer USING gin (lower(lname) gin_trgm_ops);
+CREATE INDEX customer_fname_trgm_idx ON Customer USING gin (lower(fname) gin_trgm_ops);
+
 ---------------
 ---RELATIONS---
 ---------------
@@ -61,6 +88,8 @@ CREATE TABLE Owns
 	FOREIGN KEY (car_vin) REFERENCES Car(vin)
 );
 
+-- Service_Request and Closed_Request are partitioned by month of their date,
+-- see PARTITIONS below. A primary key has to include the partition key.
 CREATE TABLE Service_Request
 (
 	rid INTEGER NOT NULL,
@@ -69,10 +98,10 @@ CREATE TABLE Service_Request
 	date DATE NOT NULL,
 	odometer _PINTEGER NOT NULL,
 	complain TEXT,
-	PRIMARY KEY (rid),
+	PRIMARY KEY (rid, date),
 	FOREIGN KEY (customer_id) REFERENCES Customer(id),
 	FOREIGN KEY (car_vin) REFERENCES Car(vin)
-);
+) PARTITION BY RANGE (date);
 
 CREATE TABLE Closed_Request
 (
@@ -82,69 +111,276 @@ CREATE TABLE Closed_Request
 	date DATE NOT NULL,
 	comment TEXT,
 	bill _PINTEGER NOT NULL,
-	PRIMARY KEY (wid),
-	FOREIGN KEY (rid) REFERENCES Service_Request(rid),
+	PRIMARY KEY (wid, date),
 	FOREIGN KEY (mid) REFERENCES Mechanic(id)
+) PARTITION BY RANGE (date);
+
+----------------
+---PARTITIONS---
+----------------
+-- Every month has its own partition, named e.g. service_request_2016_05.
+-- Rows of a month without a partition go to the default partition until
+-- create_month_partition moves them out; the application calls it before it
+-- inserts a row of a month it has not seen yet.
+CREATE TABLE Service_Request_Default PARTITION OF Service_Request DEFAULT;
+CREATE TABLE Closed_Request_Default PARTITION OF Closed_Request DEFAULT;
+
+-- Creates the partition holding a day's month, if it does not exist yet, and
+-- moves that month's rows out of the default partition into it.
+CREATE OR REPLACE FUNCTION create_month_partition(parent regclass, day DATE) RETURNS regclass AS $$
+DECLARE
+	first DATE := date_trunc('month', day)::date;
+	next DATE := (date_trunc('month', day) + interval '1 month')::date;
+	name TEXT := parent::text || to_char(day, '"_"YYYY"_"MM');
+BEGIN
+	IF to_regclass(name) IS NOT NULL THEN
+		RETURN name::regclass;
+	END IF;
+	-- one session creates it, the others wait and find it
+	PERFORM pg_advisory_xact_lock(hashtext(name));
+	IF to_regclass(name) IS NOT NULL THEN
+		RETURN name::regclass;
+	END IF;
+	EXECUTE format('CREATE TABLE %I (LIKE %s INCLUDING DEFAULTS INCLUDING CONSTRAINTS)', name, parent);
+	EXECUTE format('WITH moved AS (DELETE FROM %I WHERE date >= $1 AND date < $2 RETURNING *) INSERT INTO %I SELECT * FROM moved',
+		parent::text || '_default', name) USING first, next;
+	EXECUTE format('ALTER TABLE %s ATTACH PARTITION %I FOR VALUES FROM (%L) TO (%L)', parent, name, first, next);
+	RETURN name::regclass;
+END;
+$$ LANGUAGE plpgsql;
+
+-- Gives every month found in the default partition its own partition.
+-- after_load.sql runs it for rows copied before their month had a partition.
+CREATE OR REPLACE FUNCTION split_default_partition(parent regclass) RETURNS INTEGER AS $$
+DECLARE
+	month DATE;
+	created INTEGER := 0;
+BEGIN
+	FOR month IN EXECUTE format('SELECT DISTINCT date_trunc(''month'', date)::date FROM %I', parent::text || '_default') LOOP
+		PERFORM create_month_partition(parent, month);
+		created := created + 1;
+	END LOOP;
+	RETURN created;
+END;
+$$ LANGUAGE plpgsql;
+
+-- Detaches the partitions of the months before a date and moves them to the
+-- archive schema, where they can be queried, dumped or dropped. Rollups keep
+-- counting the archived rows.
+CREATE OR REPLACE FUNCTION archive_month_partitions(parent regclass, before DATE) RETURNS INTEGER AS $$
+DECLARE
+	part TEXT;
+	archived INTEGER := 0;
+BEGIN
+	CREATE SCHEMA IF NOT EXISTS archive;
+	FOR part IN
+		SELECT c.relname FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid
+		WHERE i.inhparent = parent AND c.relname ~ '_\d{4}_\d{2}$'
+		AND to_date(right(c.relname, 7), 'YYYY_MM') + interval '1 month' <= before
+		ORDER BY c.relname
+	LOOP
+		EXECUTE format('ALTER TABLE %s DETACH PARTITION %I', parent, part);
+		EXECUTE format('ALTER TABLE %I SET SCHEMA archive', part);
+		archived := archived + 1;
+	END LOOP;
+	RETURN archived;
+END;
+$$ LANGUAGE plpgsql;
+
+-- The primary keys of the partitioned tables must include the date, so they
+-- no longer make rid and wid unique on their own; these triggers do. Inserts
+-- of the same key wait for each other on an advisory lock, so the second one
+-- sees the first and fails with unique_violation, in whichever month it is.
+-- BulkLoader turns them off while it copies and checks all rows at once after.
+CREATE OR REPLACE FUNCTION service_request_rid_unique() RETURNS trigger AS $$
+BEGIN
+	PERFORM pg_advisory_xact_lock(hashtext('service_request'), NEW.rid);
+	IF (SELECT count(*) FROM Service_Request WHERE rid = NEW.rid) > 1 THEN
+		RAISE unique_violation USING MESSAGE = format('Service request %s already exists', NEW.rid);
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+CREATE TRIGGER service_request_rid_key AFTER INSERT OR UPDATE OF rid ON Service_Request
+	FOR EACH ROW EXECUTE PROCEDURE service_request_rid_unique();
+
+CREATE OR REPLACE FUNCTION closed_request_wid_unique() RETURNS trigger AS $$
+BEGIN
+	PERFORM pg_advisory_xact_lock(hashtext('closed_request'), NEW.wid);
+	IF (SELECT count(*) FROM Closed_Request WHERE wid = NEW.wid) > 1 THEN
+		RAISE unique_violation USING MESSAGE = format('Closed request %s already exists', NEW.wid);
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+CREATE TRIGGER closed_request_wid_key AFTER INSERT OR UPDATE OF wid ON Closed_Request
+	FOR EACH ROW EXECUTE PROCEDURE closed_request_wid_unique();
+
+-- A foreign key cannot point at Service_Request(rid) any more, since rid alone
+-- is not unique across partitions; this trigger does its check instead.
+-- BulkLoader turns it off while it copies and checks all rows at once after.
+CREATE OR REPLACE FUNCTION closed_request_rid_check() RETURNS trigger AS $$
+BEGIN
+	IF NOT EXISTS (SELECT 1 FROM Service_Request WHERE rid = NEW.rid) THEN
+		RAISE foreign_key_violation USING MESSAGE = format('Service request %s does not exist', NEW.rid);
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+CREATE TRIGGER closed_request_rid_fk AFTER INSERT OR UPDATE OF rid ON Closed_Request
+	FOR EACH ROW EXECUTE PROCEDURE closed_request_rid_check();
+
+-------------
+---INDEXES---
+-------------
+-- Secondary indexes for the foreign keys and the application's queries;
+-- MechanicShop plancheck checks that the queries use them. The ones on the
+-- partitioned tables are created on every month partition as well.
+-- the cars of a customer (entity cache), in the order they were bought
+CREATE INDEX owns_customer_idx ON Owns (customer_id, ownership_id) INCLUDE (car_vin);
+CREATE INDEX owns_car_idx ON Owns (car_vin);
+-- a customer's requests, and the cars of report 8: is there a request under 50000 miles
+CREATE INDEX service_request_customer_idx ON Service_Request (customer_id);
+CREATE INDEX service_request_car_idx ON Service_Request (car_vin, odometer) INCLUDE (date);
+-- whether a request is closed, and the bills of the date-ranged reports 6 and 10
+CREATE INDEX closed_request_rid_idx ON Closed_Request (rid) INCLUDE (bill);
+CREATE INDEX closed_request_mid_idx ON Closed_Request (mid);
+-- the old cars of report 8 without reading the whole table
+CREATE INDEX car_year_idx ON Car (year) INCLUDE (vin, make, model);
+
+-------------
+---ROLLUPS---
+-------------
+-- Total bill and number of closed requests per customer, kept up to date by
+-- CloseServiceRequest and rebuilt by after_load.sql. Customers without a
+-- closed request have no row.
+CREATE TABLE Customer_Bill
+(
+	customer_id INTEGER NOT NULL,
+	total_bill BIGINT NOT NULL,
+	closed_count INTEGER NOT NULL,
+	PRIMARY KEY (customer_id)
 );
+-- customer_id breaks ties, so the paged reports can seek to (total_bill, customer_id).
+CREATE INDEX customer_bill_total_bill_idx ON Customer_Bill (total_bill, customer_id);
 
-----------------------------
--- INSERT DATA STATEMENTS --
-----------------------------
-
-COPY Customer (
-	id,
-	fname,
-	lname,
-	phone,
-	address
-)
-FROM 'customer.csv'
-WITH DELIMITER ',';
-
-COPY Mechanic (
-	id,
-	fname,
-	lname,
-	experience
-)
-FROM 'mechanic.csv'
-WITH DELIMITER ',';
-
-COPY Car (
-	vin,
-	make,
-	model,
-	year
-)
-FROM 'car.csv'
-WITH DELIMITER ',';
-
-COPY Owns (
-	ownership_id,
-	customer_id,
-	car_vin
-)
-FROM 'owns.csv'
-WITH DELIMITER ',';
-
-COPY Service_Request (
-	rid,
-	customer_id,
-	car_vin,
-	date,
-	odometer,
-	complain
-)
-FROM 'service_request.csv'
-WITH DELIMITER ',';
-
-COPY Closed_Request (
-	wid,
-	rid,
-	mid,
-	date,
-	comment,
-	bill
-)
-FROM 'closed_request.csv'
-WITH DELIMITER ',';
\ No newline at end of file
+-- Number of service requests per car, kept up to date by InsertServiceRequest
+-- and rebuilt by after_load.sql. The index serves the top-K report in order.
+CREATE TABLE Car_Service_Count
+(
+	car_vin VARCHAR(16) NOT NULL,
+	service_count INTEGER NOT NULL,
+	PRIMARY KEY (car_vin)
+);
+CREATE INDEX car_service_count_top_idx ON Car_Service_Count (service_count DESC, car_vin);
+
+-- The service requests that are not closed yet, kept up to date by the open
+-- and close workflows and rebuilt by after_load.sql, so finding open work
+-- reads the open requests only. A request waits with status W until a
+-- mechanic claims it, then it is in repair with status R and that mechanic's
+-- id. Waiting requests are taken oldest first, then the highest odometer.
+CREATE TABLE Open_Request
+(
+	rid INTEGER NOT NULL,
+	date DATE NOT NULL,
+	odometer _PINTEGER NOT NULL,
+	status _STATUS NOT NULL DEFAULT 'W',
+	mid INTEGER,
+	claimed TIMESTAMP,
+	PRIMARY KEY (rid),
+	FOREIGN KEY (mid) REFERENCES Mechanic(id)
+);
+CREATE INDEX open_request_waiting_idx ON Open_Request (date, odometer DESC, rid) WHERE status = 'W';
+
+-- Revenue and number of closed requests per month, mechanic and car make,
+-- added to by every path that closes a request and rebuilt by after_load.sql.
+-- The revenue reports add these up instead of joining the whole history; the
+-- average bill is revenue / jobs. Only combinations with a closed request
+-- have a row.
+CREATE TABLE Revenue_Cube
+(
+	month DATE NOT NULL,
+	mid INTEGER NOT NULL,
+	make VARCHAR(32) NOT NULL,
+	revenue BIGINT NOT NULL,
+	jobs INTEGER NOT NULL,
+	PRIMARY KEY (month, mid, make)
+);
+
+---------------
+---WORKFLOWS---
+---------------
+-- InsertServiceRequest and CloseServiceRequest in one call each: the checks,
+-- the month partition, the insert and the rollup happen in one statement, so
+-- they succeed or fail together and a desk far from the server waits for one
+-- round trip. The key comes from the caller's KeyAllocator block.
+-- Parameters named like a table (customer, car, mechanic) are qualified with
+-- the function name, or the queries would read them as that table's row.
+
+-- Opens a service request and returns it. Raises foreign_key_violation for an
+-- unknown customer or car.
+CREATE OR REPLACE FUNCTION open_service_request(new_rid INTEGER, customer INTEGER, car VARCHAR, day DATE, miles INTEGER, complaint TEXT)
+RETURNS Service_Request AS $$
+DECLARE
+	opened Service_Request;
+BEGIN
+	IF NOT EXISTS (SELECT 1 FROM Customer WHERE id = open_service_request.customer) THEN
+		RAISE foreign_key_violation USING MESSAGE = format('Customer %s does not exist', customer);
+	END IF;
+	IF NOT EXISTS (SELECT 1 FROM Car WHERE vin = open_service_request.car) THEN
+		RAISE foreign_key_violation USING MESSAGE = format('Car %s does not exist', car);
+	END IF;
+	PERFORM create_month_partition('service_request', day);
+	INSERT INTO Service_Request VALUES (new_rid, customer, car, day, miles, complaint) RETURNING * INTO opened;
+	INSERT INTO Car_Service_Count (car_vin, service_count) VALUES (car, 1)
+		ON CONFLICT (car_vin) DO UPDATE SET service_count = Car_Service_Count.service_count + 1;
+	INSERT INTO Open_Request (rid, date, odometer) VALUES (new_rid, day, miles);
+	RETURN opened;
+END;
+$$ LANGUAGE plpgsql;
+
+-- Closes a service request, adds the bill to its customer's total and to the
+-- revenue cube and returns the closed request. Raises foreign_key_violation
+-- for an unknown request or mechanic, and unique_violation for a request that
+-- is closed already, whose bill the rollups have counted once.
+CREATE OR REPLACE FUNCTION close_service_request(new_wid INTEGER, request INTEGER, mechanic INTEGER, day DATE, note TEXT, amount INTEGER)
+RETURNS Closed_Request AS $$
+DECLARE
+	owner INTEGER;
+	car_make VARCHAR(32);
+	closed Closed_Request;
+BEGIN
+	SELECT SR.customer_id, C.make INTO owner, car_make FROM Service_Request SR, Car C WHERE SR.rid = request AND C.vin = SR.car_vin;
+	IF NOT FOUND THEN
+		RAISE foreign_key_violation USING MESSAGE = format('Service request %s does not exist', request);
+	END IF;
+	-- two desks closing the same request wait for each other here
+	PERFORM pg_advisory_xact_lock(hashtext('close_service_request'), request);
+	IF EXISTS (SELECT 1 FROM Closed_Request WHERE rid = request) THEN
+		RAISE unique_violation USING MESSAGE = format('Service request %s is closed already', request);
+	END IF;
+	IF NOT EXISTS (SELECT 1 FROM Mechanic WHERE id = close_service_request.mechanic) THEN
+		RAISE foreign_key_violation USING MESSAGE = format('Mechanic %s does not exist', mechanic);
+	END IF;
+	PERFORM create_month_partition('closed_request', day);
+	INSERT INTO Closed_Request VALUES (new_wid, request, mechanic, day, note, amount) RETURNING * INTO closed;
+	INSERT INTO Customer_Bill (customer_id, total_bill, closed_count) VALUES (owner, amount, 1)
+		ON CONFLICT (customer_id) DO UPDATE SET total_bill = Customer_Bill.total_bill + EXCLUDED.total_bill, closed_count = Customer_Bill.closed_count + 1;
+	INSERT INTO Revenue_Cube (month, mid, make, revenue, jobs) VALUES (date_trunc('month', day), mechanic, car_make, amount, 1)
+		ON CONFLICT (month, mid, make) DO UPDATE SET revenue = Revenue_Cube.revenue + EXCLUDED.revenue, jobs = Revenue_Cube.jobs + 1;
+	DELETE FROM Open_Request WHERE rid = request;
+	RETURN closed;
+END;
+$$ LANGUAGE plpgsql;
+
+---------------
+---SEQUENCES---
+---------------
+-- Key sequences for the insert paths. INCREMENT BY must match
+-- KeyAllocator.BLOCK_SIZE: every nextval reserves a block of keys that the
+-- application hands out locally.
+CREATE SEQUENCE customer_id_seq INCREMENT BY 50 OWNED BY Customer.id;
+CREATE SEQUENCE mechanic_id_seq INCREMENT BY 50 OWNED BY Mechanic.id;
+CREATE SEQUENCE owns_ownership_id_seq INCREMENT BY 50 OWNED BY Owns.ownership_id;
+CREATE SEQUENCE service_request_rid_seq INCREMENT BY 50 OWNED BY Service_Request.rid;
+CREATE SEQUENCE closed_request_wid_seq INCREMENT BY 50 OWNED BY Closed_Request.wid;